@@ -0,0 +1,230 @@
+package com.zupcat.cache;
+
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * How the entities of a kind are cached: timeouts, MemCache namespace, tiers, write policy and max value size. The
+ * CacheStrategy values are presets of this, custom ones are made with the Builder:
+ * <pre>
+ *     private static final CachePolicy CACHE_POLICY = new CachePolicy.Builder().timeoutSecs(120).namespace("games").build();
+ * </pre>
+ * Equal policies share the same MemCache instance, so they can be built on each entity constructor, but keeping them
+ * on a static field avoids the lookup
+ */
+public final class CachePolicy implements Serializable {
+
+    private static final long serialVersionUID = 471847964351314234L;
+    private static final ConcurrentMap<CachePolicy, MemCache> CACHES = new ConcurrentHashMap<>();
+
+    private final int timeoutSecs;
+    private final int negativeTimeoutSecs;
+    private final String namespace;
+    private final boolean memCacheTier;
+    private final int localMaxEntries;
+    private final int localTimeoutSecs;
+    private final WritePolicy writePolicy;
+    private final int maxValueBytes;
+    private transient volatile MemCache cache;
+
+
+    private CachePolicy(final Builder builder) {
+        this.timeoutSecs = builder.timeoutSecs;
+        this.negativeTimeoutSecs = builder.negativeTimeoutSecs;
+        this.namespace = builder.namespace;
+        this.memCacheTier = builder.memCacheTier;
+        this.localMaxEntries = builder.localMaxEntries;
+        this.localTimeoutSecs = builder.localTimeoutSecs;
+        this.writePolicy = builder.writePolicy;
+        this.maxValueBytes = builder.maxValueBytes;
+    }
+
+    /**
+     * @return the cache of this policy, a NoMemCache if it has no tiers
+     */
+    public MemCache get() {
+        MemCache result = cache;
+
+        if (result == null) {
+            result = CACHES.get(this);
+
+            if (result == null) {
+                final MemCache created = buildCache();
+                result = CACHES.putIfAbsent(this, created);
+
+                if (result == null) {
+                    result = created;
+                }
+            }
+            cache = result;
+        }
+        return result;
+    }
+
+    public boolean isEnabled() {
+        return timeoutSecs > 0 && (memCacheTier || localMaxEntries > 0);
+    }
+
+    public int getTimeoutSecs() {
+        return timeoutSecs;
+    }
+
+    public int getNegativeTimeoutSecs() {
+        return negativeTimeoutSecs;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public boolean hasMemCacheTier() {
+        return memCacheTier;
+    }
+
+    public int getLocalMaxEntries() {
+        return localMaxEntries;
+    }
+
+    public int getLocalTimeoutSecs() {
+        return localTimeoutSecs;
+    }
+
+    public WritePolicy getWritePolicy() {
+        return writePolicy;
+    }
+
+    public int getMaxValueBytes() {
+        return maxValueBytes;
+    }
+
+    /**
+     * @return false if the value is bigger than maxValueBytes, so it shouldn't be cached
+     */
+    public boolean isCacheable(final int valueBytes) {
+        return maxValueBytes <= 0 || valueBytes <= maxValueBytes;
+    }
+
+    private MemCache buildCache() {
+        if (!isEnabled()) {
+            return new NoMemCache();
+        }
+        if (!memCacheTier) {
+            return new LocalMemCache(timeoutSecs, negativeTimeoutSecs, localMaxEntries);
+        }
+        if (localMaxEntries > 0) {
+            return new TieredMemCache(timeoutSecs, negativeTimeoutSecs, namespace, localMaxEntries, localTimeoutSecs);
+        }
+        return new MemCache(timeoutSecs, negativeTimeoutSecs, namespace);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final CachePolicy other = (CachePolicy) o;
+
+        return timeoutSecs == other.timeoutSecs &&
+                negativeTimeoutSecs == other.negativeTimeoutSecs &&
+                memCacheTier == other.memCacheTier &&
+                localMaxEntries == other.localMaxEntries &&
+                localTimeoutSecs == other.localTimeoutSecs &&
+                maxValueBytes == other.maxValueBytes &&
+                writePolicy == other.writePolicy &&
+                Objects.equals(namespace, other.namespace);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(timeoutSecs, negativeTimeoutSecs, namespace, memCacheTier, localMaxEntries, localTimeoutSecs, writePolicy, maxValueBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "CachePolicy{timeoutSecs=" + timeoutSecs + ", negativeTimeoutSecs=" + negativeTimeoutSecs + ", namespace=" + namespace + ", memCacheTier=" + memCacheTier + ", localMaxEntries=" + localMaxEntries + ", localTimeoutSecs=" + localTimeoutSecs + ", writePolicy=" + writePolicy + ", maxValueBytes=" + maxValueBytes + "}";
+    }
+
+
+    /**
+     * By default: cached on MemCache for a day, tombstones for a minute, write through and no max value size
+     */
+    public static final class Builder {
+
+        private int timeoutSecs = 60 * 60 * 24;
+        private int negativeTimeoutSecs = 60;
+        private String namespace;
+        private boolean memCacheTier = true;
+        private int localMaxEntries;
+        private int localTimeoutSecs;
+        private WritePolicy writePolicy = WritePolicy.WRITE_THROUGH;
+        private int maxValueBytes;
+
+
+        public CachePolicy build() {
+            return new CachePolicy(this);
+        }
+
+        /**
+         * Zero disables caching
+         */
+        public Builder timeoutSecs(final int timeoutSecs) {
+            this.timeoutSecs = timeoutSecs;
+
+            return this;
+        }
+
+        /**
+         * Time to keep the tombstones of not found entities. Zero disables negative caching
+         */
+        public Builder negativeTimeoutSecs(final int negativeTimeoutSecs) {
+            this.negativeTimeoutSecs = negativeTimeoutSecs;
+
+            return this;
+        }
+
+        public Builder namespace(final String namespace) {
+            this.namespace = namespace;
+
+            return this;
+        }
+
+        /**
+         * Keeps the last localMaxEntries values on each instance for localTimeoutSecs at most, in front of MemCache
+         */
+        public Builder localTier(final int localMaxEntries, final int localTimeoutSecs) {
+            this.localMaxEntries = localMaxEntries;
+            this.localTimeoutSecs = localTimeoutSecs;
+
+            return this;
+        }
+
+        /**
+         * Skips MemCache, so values are only kept by the local tier for timeoutSecs. Needs localTier
+         */
+        public Builder localOnly() {
+            this.memCacheTier = false;
+
+            return this;
+        }
+
+        public Builder writePolicy(final WritePolicy writePolicy) {
+            this.writePolicy = writePolicy;
+
+            return this;
+        }
+
+        /**
+         * Values bigger than this are not cached. Zero for no limit
+         */
+        public Builder maxValueBytes(final int maxValueBytes) {
+            this.maxValueBytes = maxValueBytes;
+
+            return this;
+        }
+    }
+}
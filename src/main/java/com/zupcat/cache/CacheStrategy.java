@@ -3,23 +3,28 @@ package com.zupcat.cache;
 import java.io.Serializable;
 
 /**
- * Cache strategies for hide expiration strategies
+ * Cache strategies for hide expiration strategies. They are presets of CachePolicy, which can be used for other needs
  */
 public enum CacheStrategy implements Serializable {
 
-    NO_CACHE(new NoMemCache()), // NullObject pattern
-    APPLICATION_CACHE(new MemCache(60 * 60 * 24)), // a day
-    SESSION_CACHE(new MemCache(60 * 15)); // 15 minutes
+    NO_CACHE(new CachePolicy.Builder().timeoutSecs(0).negativeTimeoutSecs(0).build()), // NullObject pattern
+    APPLICATION_CACHE(new CachePolicy.Builder().timeoutSecs(60 * 60 * 24).negativeTimeoutSecs(60).build()), // a day, not found entities for a minute
+    SESSION_CACHE(new CachePolicy.Builder().timeoutSecs(60 * 15).negativeTimeoutSecs(30).build()), // 15 minutes, not found entities for 30 seconds
+    LOCAL_APPLICATION_CACHE(new CachePolicy.Builder().timeoutSecs(60 * 60 * 24).negativeTimeoutSecs(60).localTier(10000, 60).build()); // APPLICATION_CACHE plus the last 10000 values kept on each instance for a minute
 
     private static final long serialVersionUID = 471847964351314234L;
 
-    private final MemCache strategy;
+    private final CachePolicy policy;
 
-    CacheStrategy(final MemCache strategy) {
-        this.strategy = strategy;
+    CacheStrategy(final CachePolicy policy) {
+        this.policy = policy;
+    }
+
+    public CachePolicy getPolicy() {
+        return policy;
     }
 
     public MemCache get() {
-        return strategy;
+        return policy.get();
     }
 }
@@ -0,0 +1,19 @@
+package com.zupcat.cache;
+
+/**
+ * Reads the version of a cached value, so newer values are not replaced by older ones
+ */
+public interface IVersionReader {
+
+    /**
+     * @return the version of the value, or null if it has none
+     */
+    Long getVersion(final Object value);
+
+    /**
+     * @return false if it can't be known which of two different versions is the newer one, as happens when they have
+     * the same time and differ only by a random part. Values with such versions are removed from the cache instead of
+     * being replaced
+     */
+    boolean isOrdered(final long currentVersion, final long version);
+}
@@ -0,0 +1,141 @@
+package com.zupcat.cache;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory LRU cache with expiration per entry and hit/miss stats. Values are shared by all the threads of the
+ * instance, so they shouldn't be modified once cached
+ */
+public final class LocalCache implements Serializable {
+
+    private static final long serialVersionUID = 471847964351314234L;
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+
+    public LocalCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 471847964351314234L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                final boolean evict = size() > LocalCache.this.maxEntries;
+
+                if (evict) {
+                    evictions.incrementAndGet();
+                }
+                return evict;
+            }
+        };
+    }
+
+    /**
+     * @return the value, or null if it is not present or it expired
+     */
+    public Object get(final String key) {
+        final Object result;
+
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+
+            if (entry != null && entry.expiration < System.currentTimeMillis()) {
+                entries.remove(key);
+                result = null;
+            } else {
+                result = entry == null ? null : entry.value;
+            }
+        }
+
+        if (result == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    public void put(final String key, final Object value, final int expirationSecs) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+
+        synchronized (entries) {
+            entries.put(key, new Entry(value, System.currentTimeMillis() + expirationSecs * 1000L));
+        }
+    }
+
+    public void putIfAbsent(final String key, final Object value, final int expirationSecs) {
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+
+            if (entry == null || entry.expiration < System.currentTimeMillis()) {
+                entries.put(key, new Entry(value, System.currentTimeMillis() + expirationSecs * 1000L));
+            }
+        }
+    }
+
+    public void remove(final String key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public double getHitRate() {
+        final long total = hits.get() + misses.get();
+
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalCache{size=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get() + "}";
+    }
+
+
+    private static final class Entry implements Serializable {
+
+        private static final long serialVersionUID = 471847964351314234L;
+
+        private final Object value;
+        private final long expiration;
+
+        private Entry(final Object value, final long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.zupcat.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Cache kept only on the memory of each instance, without MemCache calls. Writes done by other instances are not seen
+ * until the local values expire, so it fits kinds that are read very often and can be some seconds stale
+ */
+public final class LocalMemCache extends MemCache {
+
+    private static final long serialVersionUID = 471847964351314234L;
+
+    private final LocalCache localCache;
+
+
+    /**
+     * @param localMaxEntries values kept on each instance, evicting the least recently used ones
+     */
+    protected LocalMemCache(final int cacheTimeoutSecs, final int negativeCacheTimeoutSecs, final int localMaxEntries) {
+        super(cacheTimeoutSecs, negativeCacheTimeoutSecs);
+
+        this.localCache = new LocalCache(localMaxEntries);
+    }
+
+    public LocalCache getLocalCache() {
+        return localCache;
+    }
+
+    @Override
+    public Object get(final String key) {
+        return localCache.get(key);
+    }
+
+    @Override
+    public Map<String, Object> getAll(final Collection<String> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, Object> result = new HashMap<>(keys.size());
+
+        for (final String key : keys) {
+            final Object value = localCache.get(key);
+
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void remove(final String key) {
+        localCache.remove(key);
+    }
+
+    @Override
+    public void deleteAll(final Collection<String> keys) {
+        if (keys != null) {
+            for (final String key : keys) {
+                localCache.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public void deleteAllAndWait(final Collection<String> keys) {
+        deleteAll(keys);
+    }
+
+    @Override
+    public Future<Boolean> put(final String key, final Object value) {
+        localCache.put(key, value, getCacheTimeoutSecs());
+
+        return null;
+    }
+
+    @Override
+    public void putAll(final Map<String, ?> values) {
+        if (values != null) {
+            for (final Map.Entry<String, ?> entry : values.entrySet()) {
+                localCache.put(entry.getKey(), entry.getValue(), getCacheTimeoutSecs());
+            }
+        }
+    }
+
+    @Override
+    public Future<Set<String>> putAllIfAbsent(final Map<String, ?> values) {
+        if (values != null) {
+            for (final Map.Entry<String, ?> entry : values.entrySet()) {
+                localCache.putIfAbsent(entry.getKey(), entry.getValue(), getCacheTimeoutSecs());
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized Set<String> putAllIfNewer(final Map<String, ?> values, final Map<String, Long> versions, final IVersionReader versionReader) {
+        if (values == null || values.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        final Set<String> result = new HashSet<>(values.size());
+
+        for (final Map.Entry<String, ?> entry : values.entrySet()) {
+            final Object current = localCache.get(entry.getKey());
+
+            if (!isOrdered(current, versions.get(entry.getKey()), versionReader)) {
+                localCache.remove(entry.getKey());
+            } else if (isReplaceable(current, versions.get(entry.getKey()), versionReader)) {
+                localCache.put(entry.getKey(), entry.getValue(), getCacheTimeoutSecs());
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void putAllNotFound(final Collection<String> keys) {
+        if (getNegativeCacheTimeoutSecs() > 0 && keys != null) {
+            for (final String key : keys) {
+                localCache.putIfAbsent(key, Tombstone.INSTANCE, getNegativeCacheTimeoutSecs());
+            }
+        }
+    }
+
+    @Override
+    public synchronized Long increment(final String key, final long delta, final long initialValue) {
+        final Object current = localCache.get(key);
+        final long result = (current instanceof Long ? (Long) current : initialValue) + delta;
+
+        localCache.put(key, result, getCacheTimeoutSecs());
+
+        return result;
+    }
+
+    @Override
+    public synchronized Long incrementIfPresent(final String key, final long delta) {
+        final Object current = localCache.get(key);
+
+        if (!(current instanceof Long)) {
+            return null;
+        }
+        final long result = (Long) current + delta;
+
+        localCache.put(key, result, getCacheTimeoutSecs());
+
+        return result;
+    }
+
+    @Override
+    public synchronized void addIfNotPresent(final String key, final Object value, final int expirationSecs) {
+        localCache.putIfAbsent(key, value, expirationSecs);
+    }
+}
@@ -1,11 +1,22 @@
 package com.zupcat.cache;
 
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.zupcat.service.SimpleDatastoreServiceFactory;
+import com.zupcat.util.RandomUtils;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,11 +28,58 @@ public class MemCache implements Serializable {
 
     private static final long serialVersionUID = 471847964351314234L;
     private static final Logger logger = Logger.getLogger(MemCache.class.getName());
+    private static final int MAX_CAS_TRIES = 3;
+    // above 1 favors earlier refreshes
+    private static final double EARLY_REFRESH_BETA = 1.0;
 
     private final int cacheTimeoutSecs;
+    private final int negativeCacheTimeoutSecs;
+    private final String namespace;
 
-    protected MemCache(final int cacheTimeoutSecs) {
+    /**
+     * @param negativeCacheTimeoutSecs time to keep the tombstones of not found entities. Zero disables negative caching
+     */
+    protected MemCache(final int cacheTimeoutSecs, final int negativeCacheTimeoutSecs) {
+        this(cacheTimeoutSecs, negativeCacheTimeoutSecs, null);
+    }
+
+    /**
+     * @param namespace MemCache namespace of the keys, or null for the default one
+     */
+    protected MemCache(final int cacheTimeoutSecs, final int negativeCacheTimeoutSecs, final String namespace) {
         this.cacheTimeoutSecs = cacheTimeoutSecs;
+        this.negativeCacheTimeoutSecs = negativeCacheTimeoutSecs;
+        this.namespace = namespace;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public int getCacheTimeoutSecs() {
+        return cacheTimeoutSecs;
+    }
+
+    public int getNegativeCacheTimeoutSecs() {
+        return negativeCacheTimeoutSecs;
+    }
+
+    /**
+     * Probabilistic early expiration (XFetch): the closer the value is to expire, and the longer it takes to load it
+     * again, the more likely it is to return true. So one of the readers of a popular value reloads it shortly before
+     * it expires, while the others keep using the cached one, instead of all of them missing at the same time
+     *
+     * @param cachedAtMillis  time the value was cached
+     * @param recomputeMillis time it takes to load the value again
+     */
+    public boolean shouldRefreshEarly(final long cachedAtMillis, final long recomputeMillis) {
+        if (cacheTimeoutSecs <= 0) {
+            return false;
+        }
+        final long expiration = cachedAtMillis + cacheTimeoutSecs * 1000L;
+        final double random = RandomUtils.getInstance().getRandomDouble();
+
+        return System.currentTimeMillis() - recomputeMillis * EARLY_REFRESH_BETA * Math.log(random) >= expiration;
     }
 
     public Object get(final String key) {
@@ -31,7 +89,7 @@ public class MemCache implements Serializable {
             if (loggingActivated) {
                 logger.log(Level.SEVERE, "PERF - MemCache.get", new Exception());
             }
-            return MemcacheServiceFactory.getMemcacheService().get(key);
+            return getMemcacheService().get(key);
         } catch (final Throwable e) {
             logger.log(Level.WARNING, "Problems when getting key [" + key + "] from MemCache: " + e.getMessage(), e);
             return null;
@@ -45,22 +103,325 @@ public class MemCache implements Serializable {
             if (loggingActivated) {
                 logger.log(Level.SEVERE, "PERF - MemCache.remove", new Exception());
             }
-            MemcacheServiceFactory.getAsyncMemcacheService().delete(key);
+            getAsyncMemcacheService().delete(key);
         } catch (final Throwable e) {
             logger.log(Level.WARNING, "Problems when putting object to MemCache. Key [" + key + "]: " + e.getMessage(), e);
         }
     }
 
-    public void put(final String key, final Object value) {
+    public Map<String, Object> getAll(final Collection<String> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
+
+        try {
+            if (loggingActivated) {
+                logger.log(Level.SEVERE, "PERF - MemCache.getAll", new Exception());
+            }
+            return getMemcacheService().getAll(keys);
+        } catch (final Throwable e) {
+            logger.log(Level.WARNING, "Problems when getting keys [" + keys + "] from MemCache: " + e.getMessage(), e);
+            return Collections.emptyMap();
+        }
+    }
+
+    public void deleteAll(final Collection<String> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return;
+        }
+
+        final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
+
+        try {
+            if (loggingActivated) {
+                logger.log(Level.SEVERE, "PERF - MemCache.deleteAll", new Exception());
+            }
+            getAsyncMemcacheService().deleteAll(keys);
+        } catch (final Throwable e) {
+            logger.log(Level.WARNING, "Problems when deleting keys [" + keys + "] from MemCache: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sync version of deleteAll, for keys that must be gone before the next call, as an add only put of them
+     */
+    public void deleteAllAndWait(final Collection<String> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return;
+        }
+
+        final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
+
+        try {
+            if (loggingActivated) {
+                logger.log(Level.SEVERE, "PERF - MemCache.deleteAllAndWait", new Exception());
+            }
+            getMemcacheService().deleteAll(keys);
+        } catch (final Throwable e) {
+            logger.log(Level.WARNING, "Problems when deleting keys [" + keys + "] from MemCache: " + e.getMessage(), e);
+        }
+    }
+
+    public void putAll(final Map<String, ?> values) {
+        if (values == null || values.isEmpty()) {
+            return;
+        }
+
+        final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
+
+        try {
+            if (loggingActivated) {
+                logger.log(Level.SEVERE, "PERF - MemCache.putAll", new Exception());
+            }
+            getAsyncMemcacheService().putAll(values, Expiration.byDeltaSeconds(cacheTimeoutSecs), MemcacheService.SetPolicy.SET_ALWAYS);
+        } catch (final Throwable e) {
+            logger.log(Level.WARNING, "Problems when putting objects to MemCache. Keys [" + values.keySet() + "]: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Atomically increments a counter, creating it with initialValue if it doesn't exist
+     *
+     * @return the new value, or null if the counter could not be incremented
+     */
+    public Long increment(final String key, final long delta, final long initialValue) {
+        final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
+
+        try {
+            if (loggingActivated) {
+                logger.log(Level.SEVERE, "PERF - MemCache.increment", new Exception());
+            }
+            return getMemcacheService().increment(key, delta, initialValue);
+        } catch (final Throwable e) {
+            logger.log(Level.WARNING, "Problems when incrementing counter on MemCache. Key [" + key + "]: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds the delta to a numeric value, only if it is present
+     *
+     * @return the new value, or null if it was not present
+     */
+    public Long incrementIfPresent(final String key, final long delta) {
+        final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
+
+        try {
+            if (loggingActivated) {
+                logger.log(Level.SEVERE, "PERF - MemCache.incrementIfPresent", new Exception());
+            }
+            return getMemcacheService().increment(key, delta);
+        } catch (final Throwable e) {
+            logger.log(Level.WARNING, "Problems when incrementing counter on MemCache. Key [" + key + "]: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Sync put of the value with its own expiration, only if the key is not present
+     */
+    public void addIfNotPresent(final String key, final Object value, final int expirationSecs) {
+        final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
+
+        try {
+            if (loggingActivated) {
+                logger.log(Level.SEVERE, "PERF - MemCache.addIfNotPresent", new Exception());
+            }
+            getMemcacheService().put(key, value, Expiration.byDeltaSeconds(expirationSecs), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        } catch (final Throwable e) {
+            logger.log(Level.WARNING, "Problems when putting object to MemCache. Key [" + key + "]: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the pending async put, or null if it couldn't be started
+     */
+    public Future<Boolean> put(final String key, final Object value) {
         final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
 
         try {
             if (loggingActivated) {
                 logger.log(Level.SEVERE, "PERF - MemCache.put", new Exception());
             }
-            MemcacheServiceFactory.getAsyncMemcacheService().put(key, value, Expiration.byDeltaSeconds(cacheTimeoutSecs), MemcacheService.SetPolicy.SET_ALWAYS);
+            return getAsyncMemcacheService().put(key, value, Expiration.byDeltaSeconds(cacheTimeoutSecs), MemcacheService.SetPolicy.SET_ALWAYS);
         } catch (final Throwable e) {
             logger.log(Level.WARNING, "Problems when putting object to MemCache. Key [" + key + "]: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Async put of the values that are not present. Used to write back values read from the Datastore, which should
+     * never replace the ones written meanwhile
+     *
+     * @return the pending async put, with the keys that were put, or null if there was nothing to put or it couldn't be
+     * started
+     */
+    public Future<Set<String>> putAllIfAbsent(final Map<String, ?> values) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+
+        final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
+
+        try {
+            if (loggingActivated) {
+                logger.log(Level.SEVERE, "PERF - MemCache.putAllIfAbsent", new Exception());
+            }
+            return getAsyncMemcacheService().putAll(values, Expiration.byDeltaSeconds(cacheTimeoutSecs), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        } catch (final Throwable e) {
+            logger.log(Level.WARNING, "Problems when putting objects to MemCache. Keys [" + values.keySet() + "]: " + e.getMessage(), e);
+            return null;
         }
     }
+
+    /**
+     * Puts the value only if the cached one is not newer, using compare-and-set so a concurrent write done between the
+     * read and the put is not overwritten. Tombstones and values without version are always replaced, and values whose
+     * version can't be ordered with the new one are removed
+     *
+     * @return true if the value was put
+     */
+    public boolean putIfNewer(final String key, final Object value, final long version, final IVersionReader versionReader) {
+        final Map<String, Long> versions = new HashMap<>(1);
+        versions.put(key, version);
+
+        return !putAllIfNewer(Collections.singletonMap(key, value), versions, versionReader).isEmpty();
+    }
+
+    /**
+     * Batch version of putIfNewer. Values that lose a race with a concurrent write are tried again, up to
+     * MAX_CAS_TRIES times
+     *
+     * @param versions version of each value to put
+     * @return the keys that were put
+     */
+    public Set<String> putAllIfNewer(final Map<String, ?> values, final Map<String, Long> versions, final IVersionReader versionReader) {
+        if (values == null || values.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
+        final Set<String> result = new HashSet<>(values.size());
+
+        try {
+            if (loggingActivated) {
+                logger.log(Level.SEVERE, "PERF - MemCache.putAllIfNewer", new Exception());
+            }
+            final MemcacheService memcacheService = getMemcacheService();
+            final Expiration expiration = Expiration.byDeltaSeconds(cacheTimeoutSecs);
+            Set<String> pendingKeys = new HashSet<>(values.keySet());
+
+            for (int i = 0; i < MAX_CAS_TRIES && !pendingKeys.isEmpty(); i++) {
+                final Map<String, MemcacheService.IdentifiableValue> current = memcacheService.getIdentifiables(pendingKeys);
+                final Map<String, Object> toAdd = new HashMap<>();
+                final Map<String, MemcacheService.CasValues> toReplace = new HashMap<>();
+                final List<String> toDelete = new ArrayList<>();
+
+                for (final String key : pendingKeys) {
+                    final MemcacheService.IdentifiableValue currentValue = current.get(key);
+
+                    if (currentValue == null) {
+                        toAdd.put(key, values.get(key));
+                    } else if (!isOrdered(currentValue.getValue(), versions.get(key), versionReader)) {
+                        toDelete.add(key);
+                    } else if (isReplaceable(currentValue.getValue(), versions.get(key), versionReader)) {
+                        toReplace.put(key, new MemcacheService.CasValues(currentValue, values.get(key), expiration));
+                    }
+                }
+
+                final Set<String> added = toAdd.isEmpty() ? Collections.<String>emptySet() : memcacheService.putAll(toAdd, expiration, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+                final Set<String> replaced = toReplace.isEmpty() ? Collections.<String>emptySet() : memcacheService.putIfUntouched(toReplace);
+
+                result.addAll(added);
+                result.addAll(replaced);
+
+                if (!toDelete.isEmpty()) {
+                    memcacheService.deleteAll(toDelete);
+                }
+
+                // keys that lost a race are read again, the others had a newer value
+                final Set<String> nextKeys = new HashSet<>();
+
+                for (final String key : toAdd.keySet()) {
+                    if (!added.contains(key)) {
+                        nextKeys.add(key);
+                    }
+                }
+
+                for (final String key : toReplace.keySet()) {
+                    if (!replaced.contains(key)) {
+                        nextKeys.add(key);
+                    }
+                }
+                pendingKeys = nextKeys;
+            }
+        } catch (final Throwable e) {
+            logger.log(Level.WARNING, "Problems when putting objects to MemCache with CAS. Keys [" + values.keySet() + "]: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    /**
+     * @return false if the cached value and the new one have versions that can't be ordered, so the cached one is
+     * removed: keeping either of them could keep the older one
+     */
+    static boolean isOrdered(final Object currentValue, final Long version, final IVersionReader versionReader) {
+        if (currentValue == null || Tombstone.isTombstone(currentValue) || version == null) {
+            return true;
+        }
+        final Long currentVersion = versionReader.getVersion(currentValue);
+
+        return currentVersion == null || versionReader.isOrdered(currentVersion, version);
+    }
+
+    static boolean isReplaceable(final Object currentValue, final Long version, final IVersionReader versionReader) {
+        if (currentValue == null || Tombstone.isTombstone(currentValue) || version == null) {
+            return true;
+        }
+        final Long currentVersion = versionReader.getVersion(currentValue);
+
+        return currentVersion == null || currentVersion <= version;
+    }
+
+    /**
+     * Records that the entity with the given key doesn't exist. Only added if the key is not present, so a concurrent
+     * write of the entity is never hidden by the tombstone. It is a sync call, otherwise it could land after an async
+     * put of the entity done later by the same thread
+     */
+    public void putNotFound(final String key) {
+        putAllNotFound(Collections.singletonList(key));
+    }
+
+    public void putAllNotFound(final Collection<String> keys) {
+        if (negativeCacheTimeoutSecs <= 0 || keys == null || keys.isEmpty()) {
+            return;
+        }
+
+        final boolean loggingActivated = SimpleDatastoreServiceFactory.getSimpleDatastoreService().isDatastoreCallsLoggingActivated();
+
+        try {
+            if (loggingActivated) {
+                logger.log(Level.SEVERE, "PERF - MemCache.putAllNotFound", new Exception());
+            }
+            final Map<String, Tombstone> values = new HashMap<>(keys.size());
+
+            for (final String key : keys) {
+                values.put(key, Tombstone.INSTANCE);
+            }
+            getMemcacheService().putAll(values, Expiration.byDeltaSeconds(negativeCacheTimeoutSecs), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        } catch (final Throwable e) {
+            logger.log(Level.WARNING, "Problems when putting tombstones to MemCache. Keys [" + keys + "]: " + e.getMessage(), e);
+        }
+    }
+
+    private MemcacheService getMemcacheService() {
+        return MemcacheServiceFactory.getMemcacheService(namespace);
+    }
+
+    private AsyncMemcacheService getAsyncMemcacheService() {
+        return MemcacheServiceFactory.getAsyncMemcacheService(namespace);
+    }
 }
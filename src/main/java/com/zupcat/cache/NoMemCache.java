@@ -1,12 +1,18 @@
 package com.zupcat.cache;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
 /**
  * This implementation avoids MemCache usage
  */
 public final class NoMemCache extends MemCache {
 
     protected NoMemCache() {
-        super(0);
+        super(0, 0);
     }
 
     @Override
@@ -20,7 +26,57 @@ public final class NoMemCache extends MemCache {
     }
 
     @Override
-    public void put(final String key, final Object value) {
+    public Future<Boolean> put(final String key, final Object value) {
+        return null;
+    }
+
+    @Override
+    public Long increment(final String key, final long delta, final long initialValue) {
+        return null;
+    }
+
+    @Override
+    public Long incrementIfPresent(final String key, final long delta) {
+        return null;
+    }
+
+    @Override
+    public void addIfNotPresent(final String key, final Object value, final int expirationSecs) {
+        // nothing to do
+    }
+
+    @Override
+    public Map<String, Object> getAll(final Collection<String> keys) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void deleteAll(final Collection<String> keys) {
+        // nothing to do
+    }
+
+    @Override
+    public void deleteAllAndWait(final Collection<String> keys) {
+        // nothing to do
+    }
+
+    @Override
+    public void putAll(final Map<String, ?> values) {
+        // nothing to do
+    }
+
+    @Override
+    public Future<Set<String>> putAllIfAbsent(final Map<String, ?> values) {
+        return null;
+    }
+
+    @Override
+    public Set<String> putAllIfNewer(final Map<String, ?> values, final Map<String, Long> versions, final IVersionReader versionReader) {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void putAllNotFound(final Collection<String> keys) {
         // nothing to do
     }
 }
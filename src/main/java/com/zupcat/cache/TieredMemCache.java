@@ -0,0 +1,230 @@
+package com.zupcat.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * MemCache with an in-memory LocalCache in front of it, so the values read very often on the same instance don't need
+ * a MemCache call nor a deserialization. Local values expire before the MemCache ones, as writes done by other
+ * instances are not seen by this one until then. Writes and removes done by this instance update the local tier.
+ * Only encoded entities and tombstones are kept locally: counters and other values are changed by every instance, so
+ * they are always read from MemCache
+ */
+public final class TieredMemCache extends MemCache {
+
+    private static final long serialVersionUID = 471847964351314234L;
+
+    private final LocalCache localCache;
+    private final int localTimeoutSecs;
+
+
+    /**
+     * @param localMaxEntries  values kept on each instance, evicting the least recently used ones
+     * @param localTimeoutSecs max time to keep local values, capped by cacheTimeoutSecs
+     */
+    protected TieredMemCache(final int cacheTimeoutSecs, final int negativeCacheTimeoutSecs, final String namespace, final int localMaxEntries, final int localTimeoutSecs) {
+        super(cacheTimeoutSecs, negativeCacheTimeoutSecs, namespace);
+
+        this.localCache = new LocalCache(localMaxEntries);
+        this.localTimeoutSecs = Math.min(cacheTimeoutSecs, localTimeoutSecs);
+    }
+
+    public LocalCache getLocalCache() {
+        return localCache;
+    }
+
+    @Override
+    public Object get(final String key) {
+        Object result = localCache.get(key);
+
+        if (result == null) {
+            result = super.get(key);
+
+            if (isLocal(result)) {
+                localCache.put(key, result, getLocalTimeoutSecs(result));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Object> getAll(final Collection<String> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return super.getAll(keys);
+        }
+
+        final Map<String, Object> result = new HashMap<>(keys.size());
+        final List<String> missingKeys = new ArrayList<>(keys.size());
+
+        for (final String key : keys) {
+            final Object value = localCache.get(key);
+
+            if (value == null) {
+                missingKeys.add(key);
+            } else {
+                result.put(key, value);
+            }
+        }
+
+        if (!missingKeys.isEmpty()) {
+            final Map<String, Object> remoteValues = super.getAll(missingKeys);
+
+            for (final Map.Entry<String, Object> entry : remoteValues.entrySet()) {
+                if (isLocal(entry.getValue())) {
+                    localCache.put(entry.getKey(), entry.getValue(), getLocalTimeoutSecs(entry.getValue()));
+                }
+            }
+            result.putAll(remoteValues);
+        }
+        return result;
+    }
+
+    @Override
+    public Future<Boolean> put(final String key, final Object value) {
+        putLocal(key, value);
+
+        return super.put(key, value);
+    }
+
+    @Override
+    public void putAll(final Map<String, ?> values) {
+        if (values != null) {
+            for (final Map.Entry<String, ?> entry : values.entrySet()) {
+                putLocal(entry.getKey(), entry.getValue());
+            }
+        }
+        super.putAll(values);
+    }
+
+    /**
+     * Waits for the MemCache call, so only the values it accepted are kept locally. The other ones lost the race with a
+     * write done meanwhile, and the newer value is read from MemCache
+     */
+    @Override
+    public Future<Set<String>> putAllIfAbsent(final Map<String, ?> values) {
+        final Future<Set<String>> result = super.putAllIfAbsent(values);
+
+        if (result == null) {
+            return null;
+        }
+
+        final Set<String> addedKeys;
+
+        try {
+            addedKeys = result.get();
+        } catch (final InterruptedException | ExecutionException _exception) {
+            // nothing is kept locally, the values are read from MemCache
+            return result;
+        }
+
+        for (final String key : addedKeys) {
+            final Object value = values.get(key);
+
+            if (isLocal(value)) {
+                localCache.putIfAbsent(key, value, localTimeoutSecs);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> putAllIfNewer(final Map<String, ?> values, final Map<String, Long> versions, final IVersionReader versionReader) {
+        final Set<String> result = super.putAllIfNewer(values, versions, versionReader);
+
+        if (values != null) {
+            for (final Map.Entry<String, ?> entry : values.entrySet()) {
+                if (result.contains(entry.getKey())) {
+                    putLocal(entry.getKey(), entry.getValue());
+                } else {
+                    // a newer value is on MemCache
+                    localCache.remove(entry.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void putAllNotFound(final Collection<String> keys) {
+        if (getNegativeCacheTimeoutSecs() > 0 && keys != null) {
+            for (final String key : keys) {
+                localCache.putIfAbsent(key, Tombstone.INSTANCE, getLocalTimeoutSecs(Tombstone.INSTANCE));
+            }
+        }
+        super.putAllNotFound(keys);
+    }
+
+    @Override
+    public void remove(final String key) {
+        localCache.remove(key);
+
+        super.remove(key);
+    }
+
+    @Override
+    public void deleteAll(final Collection<String> keys) {
+        if (keys != null) {
+            for (final String key : keys) {
+                localCache.remove(key);
+            }
+        }
+        super.deleteAll(keys);
+    }
+
+    @Override
+    public void deleteAllAndWait(final Collection<String> keys) {
+        if (keys != null) {
+            for (final String key : keys) {
+                localCache.remove(key);
+            }
+        }
+        super.deleteAllAndWait(keys);
+    }
+
+    @Override
+    public Long increment(final String key, final long delta, final long initialValue) {
+        // counters change on every instance, so they are not kept locally
+        localCache.remove(key);
+
+        return super.increment(key, delta, initialValue);
+    }
+
+    @Override
+    public Long incrementIfPresent(final String key, final long delta) {
+        localCache.remove(key);
+
+        return super.incrementIfPresent(key, delta);
+    }
+
+    @Override
+    public void addIfNotPresent(final String key, final Object value, final int expirationSecs) {
+        localCache.remove(key);
+
+        super.addIfNotPresent(key, value, expirationSecs);
+    }
+
+    private void putLocal(final String key, final Object value) {
+        if (isLocal(value)) {
+            localCache.put(key, value, localTimeoutSecs);
+        } else {
+            localCache.remove(key);
+        }
+    }
+
+    /**
+     * @return true for the values kept on the local tier: encoded entities and tombstones
+     */
+    private static boolean isLocal(final Object value) {
+        return value instanceof byte[] || Tombstone.isTombstone(value);
+    }
+
+    private int getLocalTimeoutSecs(final Object value) {
+        return Tombstone.isTombstone(value) ? Math.min(localTimeoutSecs, getNegativeCacheTimeoutSecs()) : localTimeoutSecs;
+    }
+}
@@ -0,0 +1,27 @@
+package com.zupcat.cache;
+
+import java.io.Serializable;
+
+/**
+ * Cache value that records that an entity was looked up on the Datastore and it didn't exist, so next lookups for the
+ * same key don't need to go to the Datastore until the tombstone expires or the entity is written
+ */
+public final class Tombstone implements Serializable {
+
+    private static final long serialVersionUID = 471847964351314234L;
+
+    public static final Tombstone INSTANCE = new Tombstone();
+
+
+    private Tombstone() {
+        // nothing to do
+    }
+
+    public static boolean isTombstone(final Object value) {
+        return value instanceof Tombstone;
+    }
+
+    private Object readResolve() {
+        return INSTANCE;
+    }
+}
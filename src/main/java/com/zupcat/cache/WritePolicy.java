@@ -0,0 +1,14 @@
+package com.zupcat.cache;
+
+/**
+ * What is done with the cached value of an entity when it is written
+ */
+public enum WritePolicy {
+
+    // the written value is cached, unless a newer one is already there
+    WRITE_THROUGH,
+    // the cached value, or tombstone, is removed and the written one is cached by the next read. This is also the write
+    // around policy: skipping the cache without removing would serve the previous value until it expires. Fits kinds
+    // written more than they are read
+    INVALIDATE_ON_WRITE
+}
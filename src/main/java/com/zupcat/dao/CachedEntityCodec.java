@@ -0,0 +1,233 @@
+package com.zupcat.dao;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.zupcat.model.EntityPersistentObjectConverter;
+
+import java.io.*;
+import java.util.Date;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact cache value of an entity: a version byte, the time it was cached, the id, the raw bdata bytes (already
+ * compressed) and the indexed property values, written with a DataOutputStream instead of Java serializing the whole
+ * Entity with its Key, property maps and Blob wrappers. Values of types without a tag are Java serialized one by one
+ */
+final class CachedEntityCodec {
+
+    static final byte VERSION = 2;
+
+    private static final Logger log = Logger.getLogger(CachedEntityCodec.class.getName());
+
+    private static final byte NULL = 0;
+    private static final byte LONG = 1;
+    private static final byte INTEGER = 2;
+    private static final byte STRING = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte DATE = 6;
+    private static final byte SERIALIZED = 7;
+    // writeUTF is limited to 65535 bytes, and each char could take 3 of them
+    private static final int MAX_UTF_CHARS = 65535 / 3;
+
+
+    private CachedEntityCodec() {
+        // nothing to do
+    }
+
+    static byte[] encode(final Entity entity) {
+        return encode(entity, System.currentTimeMillis());
+    }
+
+    /**
+     * @param cachedAt write time of the value, used to refresh it before it expires
+     */
+    static byte[] encode(final Entity entity, final long cachedAt) {
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream(estimateSize(entity));
+
+        try (final DataOutputStream output = new DataOutputStream(byteStream)) {
+            output.writeByte(VERSION);
+            output.writeLong(cachedAt);
+            output.writeUTF(entity.getKey().getName());
+
+            final Blob binaryData = (Blob) entity.getProperty(EntityPersistentObjectConverter.DATA_CONTAINER_PROPERTY);
+
+            if (binaryData == null) {
+                output.writeInt(-1);
+            } else {
+                output.writeInt(binaryData.getBytes().length);
+                output.write(binaryData.getBytes());
+            }
+            output.writeInt(EntityPersistentObjectConverter.countBlobChunks(entity));
+
+            for (final Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+                final String name = property.getKey();
+
+                if (!name.equals(EntityPersistentObjectConverter.DATA_CONTAINER_PROPERTY) && !name.equals(EntityPersistentObjectConverter.BLOB_CHUNKS_PROPERTY)) {
+                    output.writeBoolean(true);
+                    output.writeUTF(name);
+                    writeValue(property.getValue(), output);
+                }
+            }
+            output.writeBoolean(false);
+        } catch (final IOException _ioException) {
+            throw new RuntimeException("Problems encoding entity [" + entity.getKey() + "] for cache: " + _ioException.getMessage(), _ioException);
+        }
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * @return the entity, or null if the value was written by an unknown version of this codec
+     */
+    static Entity decode(final String entityName, final byte[] value) {
+        try (final DataInputStream input = new DataInputStream(new ByteArrayInputStream(value))) {
+            final byte version = input.readByte();
+
+            if (version != VERSION) {
+                log.log(Level.WARNING, "Ignoring cached value of kind [" + entityName + "] with unknown version " + version);
+                return null;
+            }
+            input.readLong();
+
+            final Entity entity = new Entity(entityName, input.readUTF());
+            final int binaryDataLength = input.readInt();
+
+            if (binaryDataLength >= 0) {
+                final byte[] binaryData = new byte[binaryDataLength];
+                input.readFully(binaryData);
+
+                entity.setUnindexedProperty(EntityPersistentObjectConverter.DATA_CONTAINER_PROPERTY, new Blob(binaryData));
+            }
+
+            final int chunks = input.readInt();
+
+            if (chunks > 0) {
+                entity.setUnindexedProperty(EntityPersistentObjectConverter.BLOB_CHUNKS_PROPERTY, (long) chunks);
+            }
+
+            while (input.readBoolean()) {
+                final String name = input.readUTF();
+                entity.setProperty(name, readValue(input));
+            }
+            return entity;
+        } catch (final IOException | ClassNotFoundException _exception) {
+            throw new RuntimeException("Problems decoding cached entity of kind [" + entityName + "]: " + _exception.getMessage(), _exception);
+        }
+    }
+
+    /**
+     * Reads one property of an encoded entity without decoding the others nor copying the binary data
+     *
+     * @return the value, or null if it is not present or the value was written by an unknown version
+     */
+    static Object readProperty(final byte[] value, final String propertyName) {
+        try (final DataInputStream input = new DataInputStream(new ByteArrayInputStream(value))) {
+            if (input.readByte() != VERSION) {
+                return null;
+            }
+            input.readLong();
+            input.readUTF();
+
+            final int binaryDataLength = input.readInt();
+
+            if (binaryDataLength > 0) {
+                input.skipBytes(binaryDataLength);
+            }
+            input.readInt();
+
+            while (input.readBoolean()) {
+                final String name = input.readUTF();
+                final Object propertyValue = readValue(input);
+
+                if (name.equals(propertyName)) {
+                    return propertyValue;
+                }
+            }
+            return null;
+        } catch (final IOException | ClassNotFoundException _exception) {
+            throw new RuntimeException("Problems reading property [" + propertyName + "] of cached entity: " + _exception.getMessage(), _exception);
+        }
+    }
+
+    /**
+     * @return the time the value was cached, or -1 if it was written by an unknown version
+     */
+    static long readCachedAt(final byte[] value) {
+        try (final DataInputStream input = new DataInputStream(new ByteArrayInputStream(value))) {
+            return input.readByte() == VERSION ? input.readLong() : -1;
+        } catch (final IOException _ioException) {
+            throw new RuntimeException("Problems reading the time of cached entity: " + _ioException.getMessage(), _ioException);
+        }
+    }
+
+    private static void writeValue(final Object value, final DataOutputStream output) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(INTEGER);
+            output.writeInt((Integer) value);
+        } else if (value instanceof String && ((String) value).length() <= MAX_UTF_CHARS) {
+            output.writeByte(STRING);
+            output.writeUTF((String) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (value instanceof Date) {
+            output.writeByte(DATE);
+            output.writeLong(((Date) value).getTime());
+        } else {
+            final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+
+            try (final ObjectOutputStream objectOutput = new ObjectOutputStream(serialized)) {
+                objectOutput.writeObject(value);
+            }
+            output.writeByte(SERIALIZED);
+            output.writeInt(serialized.size());
+            serialized.writeTo(output);
+        }
+    }
+
+    private static Object readValue(final DataInputStream input) throws IOException, ClassNotFoundException {
+        final byte type = input.readByte();
+
+        switch (type) {
+            case NULL:
+                return null;
+            case LONG:
+                return input.readLong();
+            case INTEGER:
+                return input.readInt();
+            case STRING:
+                return input.readUTF();
+            case BOOLEAN:
+                return input.readBoolean();
+            case DOUBLE:
+                return input.readDouble();
+            case DATE:
+                return new Date(input.readLong());
+            case SERIALIZED:
+                final byte[] serialized = new byte[input.readInt()];
+                input.readFully(serialized);
+
+                try (final ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+                    return objectInput.readObject();
+                }
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    private static int estimateSize(final Entity entity) {
+        final Object binaryData = entity.getProperty(EntityPersistentObjectConverter.DATA_CONTAINER_PROPERTY);
+
+        return 256 + (binaryData instanceof Blob ? ((Blob) binaryData).getBytes().length : 0);
+    }
+}
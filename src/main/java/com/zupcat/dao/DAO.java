@@ -1,14 +1,31 @@
 package com.zupcat.dao;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.datastore.*;
+import com.zupcat.cache.CachePolicy;
+import com.zupcat.cache.IVersionReader;
 import com.zupcat.cache.MemCache;
+import com.zupcat.cache.Tombstone;
+import com.zupcat.cache.WritePolicy;
+import com.zupcat.exception.ConcurrentUpdateException;
 import com.zupcat.model.DatastoreEntity;
 import com.zupcat.model.EntityPersistentObjectConverter;
+import com.zupcat.model.config.PropertyMeta;
+import com.zupcat.property.BooleanProperty;
+import com.zupcat.property.IntegerProperty;
+import com.zupcat.property.LongProperty;
+import com.zupcat.property.StringProperty;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.Predicate;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -24,11 +41,26 @@ import java.util.logging.Logger;
  */
 public class DAO<P extends DatastoreEntity> implements Serializable, IDAO<P> {
 
+    public static final int DEFAULT_PAGE_SIZE = 500;
+    // limits for each batch put. Datastore allows 500 entities and 10MB per call
+    static final int MAX_PUT_ENTITIES = 500;
+    static final int MAX_PUT_BYTES = 5 * 1024 * 1024;
+    private static final int ESTIMATED_INDEXED_BYTES = 1024;
+    public static final int MAX_CONCURRENT_UPDATE_TRIES = 5;
+    // Datastore limit of entity groups in a cross group transaction
+    public static final int MAX_TRANSACTION_GROUPS = 25;
     protected static final Logger log = Logger.getLogger(DAO.class.getName());
     private static final long serialVersionUID = 471847964351314234L;
     private static final RetryingHandler RETRYING_HANDLER = new RetryingHandler();
+    private static final SingleFlight<Entity> ENTITY_LOADS = new SingleFlight<>();
+    // keys being refreshed before they expire, so each instance refreshes them only once
+    private static final Set<String> EARLY_REFRESHES = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     protected final P sample;
     private final EntityPersistentObjectConverter<P> entityPersistentObjectConverter;
+    private boolean lazyMaterialization = false;
+    private boolean queryResultCaching = false;
+    // moving average of the Datastore gets of cache misses, used to decide early refreshes
+    private volatile long averageLoadMillis = 50;
 
 
     public DAO(final Class<? extends P> _beanClass) {
@@ -45,38 +77,126 @@ public class DAO<P extends DatastoreEntity> implements Serializable, IDAO<P> {
         return KeyFactory.createKey(entityName, id);
     }
 
+    /**
+     * Objects that were not changed since they were loaded or persisted are not written again
+     */
     public void updateOrPersist(final P persistentObject) {
+        if (!persistentObject.isDirty() && !persistentObject.isPartial()) {
+            return;
+        }
+
+        final RequestScope scope = RequestScope.current();
+
+        if (scope != null && scope.getWriteBehindBuffer() != null) {
+            scope.getWriteBehindBuffer().discard(sample.getEntityName() + persistentObject.getId());
+        }
+
         final Entity entity = prepareForUpdateOrPersist(persistentObject);
 
         getRetryingHandler().tryDSPut(entity);
+
+        putWrittenInCache(Collections.singletonList(entity));
+
+        invalidateCachedQueries();
     }
 
-    public void updateOrPersistAsync(final P persistentObject) {
+    /**
+     * If the current RequestScope has a write behind buffer, the object is only buffered and the entity is built and
+     * written when the buffer is flushed. Objects that were not changed since they were loaded or persisted are not
+     * written again
+     *
+     * @return the handle of the write. It is tracked by the current RequestScope, if any. The cached value is removed
+     * right away and the written one is cached when the handle is resolved: by the end of the RequestScope, or by the
+     * caller with await, isDone or getFailures. Out of a scope, a handle that is never resolved leaves the key out of
+     * the cache until the next read, and a read done while the write was running could cache the previous value
+     */
+    public WriteCompletion updateOrPersistAsync(final P persistentObject) {
+        if (!persistentObject.isDirty() && !persistentObject.isPartial()) {
+            return WriteCompletion.done();
+        }
+
+        final RequestScope scope = RequestScope.current();
+
+        if (scope != null && scope.getWriteBehindBuffer() != null) {
+            final String cacheKey = sample.getEntityName() + persistentObject.getId();
+
+            persistentObject.setModified();
+
+            // built now, as the object could be changed by the request while a flush is writing it
+            final Entity entity = buildEntityFromPersistentObject(persistentObject);
+
+            persistentObject.markAsClean();
+
+            scope.putMaterialized(cacheKey, persistentObject);
+
+            // the buffer flushes are waited by the scope, so this handle is not tracked
+            return scope.getWriteBehindBuffer().add(this, cacheKey, entity);
+        }
+
         final Entity entity = prepareForUpdateOrPersist(persistentObject);
+        final WriteCompletion result = new WriteCompletion(getRetryingHandler().tryDSPutAsync(entity));
+
+        // the cached value is removed without waiting, and the written one is cached with the compare-and-set calls
+        // when the handle is resolved, so they don't block this thread
+        sample.getCachePolicy().get().remove(sample.getEntityName() + persistentObject.getId());
+
+        result.whenWritten(new Runnable() {
+            @Override
+            public void run() {
+                putWrittenInCache(Collections.singletonList(entity));
+            }
+        });
+
+        invalidateCachedQueries();
 
-        getRetryingHandler().tryDSPutAsync(entity);
+        return track(result);
+    }
+
+    private static WriteCompletion track(final WriteCompletion write) {
+        final RequestScope scope = RequestScope.current();
+
+        if (scope != null) {
+            scope.track(write);
+        }
+        return write;
     }
 
     private Entity prepareForUpdateOrPersist(final P persistentObject) {
-        final String entityName = sample.getEntityName();
-        final String cacheKey = entityName + persistentObject.getId();
-        final MemCache cache = sample.getCacheStrategy().get();
+        final String cacheKey = sample.getEntityName() + persistentObject.getId();
 
         persistentObject.setModified();
 
         final Entity entity = buildEntityFromPersistentObject(persistentObject);
 
-        cache.put(cacheKey, entity);
+        persistentObject.markAsClean();
+
+        final RequestScope scope = RequestScope.current();
 
+        if (scope != null) {
+            scope.putMaterialized(cacheKey, persistentObject);
+        }
         return entity;
     }
 
     public List<P> findByQuery(final Query.Filter filter) {
+        return findByQuery(filter, 0);
+    }
+
+    /**
+     * @param prefetchPages how many pages of DEFAULT_PAGE_SIZE entities are fetched ahead while the current ones are
+     *                      being read. With 0 pages are fetched only when needed. Cached query results are
+     *                      read by id, so it doesn't apply to them
+     */
+    public List<P> findByQuery(final Query.Filter filter, final int prefetchPages) {
         final Query query = new Query(getEntityName());
         query.setFilter(filter);
 
+        if (queryResultCaching && filter != null) {
+            return findByQueryCached(query);
+        }
+
         final List<P> list = new ArrayList<>();
-        final Iterator<P> iterator = findByQueryIterable(query);
+        final Iterator<P> iterator = findByQueryIterable(query, prefetchPages);
 
         while (iterator.hasNext()) {
             list.add(iterator.next());
@@ -123,78 +243,631 @@ public class DAO<P extends DatastoreEntity> implements Serializable, IDAO<P> {
         };
     }
 
+    /**
+     * @param prefetchPages how many pages of DEFAULT_PAGE_SIZE entities are fetched ahead. With 0 pages are fetched
+     *                      only when needed
+     */
+    protected Iterator<P> findByQueryIterable(final Query query, final int prefetchPages) {
+        return prefetchPages > 0 ? findByQueryIterable(query, DEFAULT_PAGE_SIZE, prefetchPages) : findByQueryIterable(query);
+    }
+
+    /**
+     * Iterates the query results in pages of pageSize entities. When prefetching, the next prefetchPages pages are
+     * fetched with one call through the async Datastore service as soon as the current ones arrive, so the caller's
+     * processing overlaps the next round-trip. Cursors are only known once a fetch arrives, so at most 2 *
+     * prefetchPages pages are held: the ones being consumed and the ones in flight. With 0, pages are fetched one by
+     * one when needed
+     */
+    protected Iterator<P> findByQueryIterable(final Query query, final int pageSize, final int prefetchPages) {
+        return new PagedQueryIterator(query, pageSize, prefetchPages);
+    }
+
+    /**
+     * Looks for the query ids on the cache. The cached result is only valid if it was computed with the current kind
+     * generation, which is bumped on every write of this kind. Both values are read with one batch call
+     */
+    private List<P> findByQueryCached(final Query query) {
+        final MemCache cache = sample.getCachePolicy().get();
+        final String generationKey = getQueryGenerationCacheKey();
+        final String resultKey = "_q_" + getEntityName() + DigestUtils.md5Hex(query.toString());
+
+        final Map<String, Object> cached = cache.getAll(Arrays.asList(generationKey, resultKey));
+        Long generation = (Long) cached.get(generationKey);
+        final CachedQueryResult cachedResult = (CachedQueryResult) cached.get(resultKey);
+
+        if (generation != null && cachedResult != null && cachedResult.generation == generation) {
+            return findByIdsKeepingOrder(cachedResult.ids);
+        }
+
+        if (generation == null) {
+            // starting on current time, so a previously evicted counter never gets back to an old generation
+            generation = cache.increment(generationKey, 0L, System.currentTimeMillis());
+        }
+
+        query.setKeysOnly();
+
+        final ArrayList<String> ids = new ArrayList<>();
+
+        for (final Entity keyEntity : getRetryingHandler().tryExecuteQuery(query, FetchOptions.Builder.withChunkSize(DEFAULT_PAGE_SIZE))) {
+            ids.add(keyEntity.getKey().getName());
+        }
+
+        if (generation != null) {
+            cache.put(resultKey, new CachedQueryResult(generation, ids));
+        }
+        return findByIdsKeepingOrder(ids);
+    }
+
+    /**
+     * Invalidates every cached query result of this kind in O(1), bumping the kind generation
+     */
+    void invalidateCachedQueries() {
+        if (queryResultCaching) {
+            sample.getCachePolicy().get().increment(getQueryGenerationCacheKey(), 1L, System.currentTimeMillis());
+        }
+    }
+
+    private String getQueryGenerationCacheKey() {
+        return "_qg_" + getEntityName();
+    }
+
+    /**
+     * Runs a keys only query and then resolves the keys with cache first batch lookups, so only the cache misses are
+     * fetched from the Datastore as full entities. Useful on cached kinds. Results keep the query order
+     */
+    public List<P> findByQueryThroughCache(final Query.Filter filter) {
+        final Query query = new Query(getEntityName());
+        query.setFilter(filter);
+        query.setKeysOnly();
+
+        final List<String> ids = new ArrayList<>();
+
+        for (final Entity keyEntity : getRetryingHandler().tryExecuteQuery(query, FetchOptions.Builder.withChunkSize(DEFAULT_PAGE_SIZE))) {
+            ids.add(keyEntity.getKey().getName());
+        }
+        return findByIdsKeepingOrder(ids);
+    }
+
+    private List<P> findByIdsKeepingOrder(final List<String> ids) {
+        // batch lookups are started at once, so their Datastore round-trips overlap
+        final List<FutureEntityMap<P>> futures = new ArrayList<>(ids.size() / DEFAULT_PAGE_SIZE + 1);
+
+        for (int i = 0; i < ids.size(); i += DEFAULT_PAGE_SIZE) {
+            futures.add(findUniqueIdMultipleAsync(ids.subList(i, Math.min(i + DEFAULT_PAGE_SIZE, ids.size()))));
+        }
+
+        final Map<String, P> found = new HashMap<>(ids.size());
+
+        for (final FutureEntityMap<P> future : futures) {
+            found.putAll(future.get());
+        }
+
+        final List<P> result = new ArrayList<>(found.size());
+
+        for (final String id : ids) {
+            final P persistentObject = found.get(id);
+
+            if (persistentObject != null) {
+                result.add(persistentObject);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs a Datastore projection query returning only the given indexed properties (and the id), so the compressed
+     * data is never transferred nor decoded. Results are partially filled and read only: trying to persist them fails
+     */
+    public List<P> findByProjection(final Query.Filter filter, final PropertyMeta... properties) {
+        final Query query = new Query(getEntityName());
+        query.setFilter(filter);
+
+        for (final PropertyMeta propertyMeta : properties) {
+            if (!propertyMeta.isIndexable()) {
+                throw new RuntimeException("Property [" + propertyMeta.getPropertyName() + "] of Entity [" + getEntityName() + "] is not indexable, so it could not be projected");
+            }
+            query.addProjection(new PropertyProjection(propertyMeta.getPropertyName(), getProjectionType(propertyMeta)));
+        }
+
+        final List<P> list = new ArrayList<>();
+        final Iterator<P> iterator = findByQueryIterable(query, DEFAULT_PAGE_SIZE, 1);
+
+        while (iterator.hasNext()) {
+            final P persistentObject = iterator.next();
+            persistentObject.markAsPartial();
+            list.add(persistentObject);
+        }
+        return list;
+    }
+
+    private static Class<?> getProjectionType(final PropertyMeta propertyMeta) {
+        if (propertyMeta instanceof IntegerProperty || propertyMeta instanceof LongProperty) {
+            return Long.class;
+        } else if (propertyMeta instanceof StringProperty) {
+            return String.class;
+        } else if (propertyMeta instanceof BooleanProperty) {
+            return Boolean.class;
+        }
+        // the Datastore returns a RawValue
+        return null;
+    }
+
     public List<P> getAll() {
         return findByQuery(null);
     }
 
+    /**
+     * Scans the whole kind running one query per GROUP_ID shard, at most maxConcurrency at the same time. Entities
+     * are sent to the consumer as they arrive, and it could be called from several threads at once
+     *
+     * @return the quantity of scanned entities
+     */
+    public long scanAllParallel(final int maxConcurrency, final IEntityConsumer<P> consumer) {
+        return scanAllParallel(maxConcurrency, ThreadManager.currentRequestThreadFactory(), consumer);
+    }
+
+    public long scanAllParallel(final int maxConcurrency, final ThreadFactory threadFactory, final IEntityConsumer<P> consumer) {
+        final GroupScanParallel<P> scan = new GroupScanParallel<>(this, maxConcurrency, threadFactory, consumer);
+
+        try {
+            scan.start();
+        } catch (final Exception _exception) {
+            throw new RuntimeException("Problems scanning kind [" + getEntityName() + "]: " + _exception.getMessage(), _exception);
+        }
+
+        if (scan.hasProblems()) {
+            throw new RuntimeException("Problems scanning kind [" + getEntityName() + "]. " + scan.getProblemsRepresentation());
+        }
+        return scan.getScannedCount();
+    }
+
     public P findById(final String id) {
         final String entityName = sample.getEntityName();
         final String cacheKey = entityName + id;
-        final MemCache cache = sample.getCacheStrategy().get();
+        final RequestScope scope = RequestScope.current();
+        final P materialized = getMaterialized(scope, cacheKey);
+
+        if (materialized != null || isRemoved(scope, cacheKey)) {
+            return materialized;
+        }
+
+        final MemCache cache = sample.getCachePolicy().get();
+
+        final Object cached = cache.get(cacheKey);
+
+        if (Tombstone.isTombstone(cached)) {
+            return null;
+        }
 
-        Entity entity = (Entity) cache.get(cacheKey);
+        Entity entity = fromCacheValue(cached);
 
         if (entity == null) {
-            final Key key = buildKey(entityName, id);
+            removeUnreadable(cached, cacheKey, cache);
+            entity = loadUncached(entityName, id, cacheKey, cache);
+        } else {
+            refreshIfExpiring(cached, id, cacheKey, cache);
+        }
+        return materialize(entity, cacheKey, scope);
+    }
 
-            entity = RETRYING_HANDLER.tryDSGet(key);
+    /**
+     * Values that can't be decoded, as the ones written by another CachedEntityCodec version, are removed before the
+     * entity is loaded: the add only write back of the load would not replace them
+     */
+    private static void removeUnreadable(final Object cached, final String cacheKey, final MemCache cache) {
+        if (cached != null) {
+            cache.deleteAllAndWait(Collections.singletonList(cacheKey));
+        }
+    }
 
-            if (entity != null) {
-                cache.put(cacheKey, entity);
+    /**
+     * Gets the entity from the Datastore and writes it back to the cache. Concurrent misses of the same key on this
+     * instance share one Datastore get and one cache write, so an expired popular entity is loaded only once
+     */
+    private Entity loadUncached(final String entityName, final String id, final String cacheKey, final MemCache cache) {
+        return ENTITY_LOADS.load(cacheKey, new Callable<Entity>() {
+            @Override
+            public Entity call() {
+                final long start = System.currentTimeMillis();
+                final Entity entity = getRetryingHandler().tryDSGet(buildKey(entityName, id));
+
+                averageLoadMillis = (averageLoadMillis * 7 + System.currentTimeMillis() - start) / 8;
+
+                if (entity == null) {
+                    cache.putNotFound(cacheKey);
+                } else {
+                    putLoadedInCache(Collections.singletonList(entity));
+                }
+                return entity;
             }
+        });
+    }
+
+    /**
+     * Stale-while-revalidate for cache hits: when MemCache.shouldRefreshEarly says so, the entity is read again with
+     * an async Datastore get and cached with a new expiration, while the cached value is still used. The refresh is
+     * finished at the end of the RequestScope, so it is only done when there is one: otherwise it would block this read
+     */
+    private void refreshIfExpiring(final Object cached, final String id, final String cacheKey, final MemCache cache) {
+        final RequestScope scope = RequestScope.current();
+
+        if (scope == null || !(cached instanceof byte[])) {
+            return;
         }
-        return entity == null ? null : buildPersistentObjectFromEntity(entity);
+        final long cachedAt = CachedEntityCodec.readCachedAt((byte[]) cached);
+
+        if (cachedAt < 0 || !cache.shouldRefreshEarly(cachedAt, averageLoadMillis) || !EARLY_REFRESHES.add(cacheKey)) {
+            return;
+        }
+
+        final Future<Entity> future;
+
+        try {
+            future = getRetryingHandler().tryDSGetAsync(buildKey(sample.getEntityName(), id));
+        } catch (final RuntimeException _exception) {
+            EARLY_REFRESHES.remove(cacheKey);
+            throw _exception;
+        }
+
+        final Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Entity entity = future.get();
+
+                    if (entity != null) {
+                        putNewerInCache(Collections.singletonList(entity));
+                    }
+                } catch (final Exception _exception) {
+                    log.log(Level.WARNING, "Problems when refreshing cached entity [" + cacheKey + "]: " + _exception.getMessage(), _exception);
+                } finally {
+                    EARLY_REFRESHES.remove(cacheKey);
+                }
+            }
+        };
+
+        scope.addRefresh(refresh);
     }
 
+    /**
+     * Cache misses are not fetched right away: their keys are collected on the current thread and fetched with one
+     * Datastore batch get when the first of the returned futures is resolved, so calling this in a loop costs one RPC.
+     * The pending batch is released when the RequestScope ends. Out of a scope it is kept by the thread until one of
+     * its futures is resolved
+     */
     public FutureEntity<P> findByIdAsync(final String id) {
         final String entityName = sample.getEntityName();
         final String cacheKey = entityName + id;
-        final MemCache cache = sample.getCacheStrategy().get();
+        final RequestScope scope = RequestScope.current();
+        final P materialized = getMaterialized(scope, cacheKey);
+
+        if (materialized != null || isRemoved(scope, cacheKey)) {
+            return new FutureEntity<>(materialized);
+        }
 
-        final Entity cachedEntity = (Entity) cache.get(cacheKey);
+        final MemCache cache = sample.getCachePolicy().get();
+        final Object cached = cache.get(cacheKey);
+
+        if (Tombstone.isTombstone(cached)) {
+            return new FutureEntity<>(null);
+        }
+
+        final Entity cachedEntity = fromCacheValue(cached);
 
         if (cachedEntity == null) {
+            removeUnreadable(cached, cacheKey, cache);
+
             final Key key = buildKey(entityName, id);
 
-            return new FutureEntity<>(key, this, cache, cacheKey);
+            return new FutureEntity<>(key, GetBatch.enqueue(key, getRetryingHandler()), this, cache, cacheKey, scope);
         } else {
-            return new FutureEntity<>(buildPersistentObjectFromEntity(cachedEntity));
+            refreshIfExpiring(cached, id, cacheKey, cache);
+
+            return new FutureEntity<>(materialize(cachedEntity, cacheKey, scope));
         }
     }
 
     public Map<String, P> findUniqueIdMultiple(final Collection<String> ids) {
         final Map<String, P> result = new HashMap<>(ids.size());
-        final List<Key> realKeys = new ArrayList<>(ids.size());
+        final List<String> missingIds = findCachedMultiple(ids, result);
+
+        result.putAll(findUncachedMultiple(missingIds));
+
+        return result;
+    }
+
+    /**
+     * Looks for the given ids on the request scope identity map and then on the cache, using one batch call. Found
+     * objects are added to result, and the ids that were not found are returned. Ids with a cached tombstone are
+     * known not to exist, so they are neither added nor returned
+     */
+    List<String> findCachedMultiple(final Collection<String> ids, final Map<String, P> result) {
+        final String entityName = sample.getEntityName();
+        final RequestScope scope = RequestScope.current();
+        final List<String> cacheKeys = new ArrayList<>(ids.size());
+
+        for (final String id : ids) {
+            final String cacheKey = entityName + id;
+            final P materialized = getMaterialized(scope, cacheKey);
+
+            if (materialized != null) {
+                result.put(id, materialized);
+            } else if (!isRemoved(scope, cacheKey)) {
+                cacheKeys.add(cacheKey);
+            }
+        }
+
+        final MemCache cache = sample.getCachePolicy().get();
+        final Map<String, Object> cachedEntities = cache.getAll(cacheKeys);
+        final List<String> missingIds = new ArrayList<>(cacheKeys.size() - cachedEntities.size());
+        final List<Entity> hits = new ArrayList<>(cachedEntities.size());
+        final List<String> unreadableKeys = new ArrayList<>();
+
+        for (final String cacheKey : cacheKeys) {
+            final Object cached = cachedEntities.get(cacheKey);
+            final String id = cacheKey.substring(entityName.length());
+
+            if (Tombstone.isTombstone(cached)) {
+                continue;
+            }
+            final Entity cachedEntity = fromCacheValue(cached);
+
+            if (cachedEntity == null) {
+                missingIds.add(id);
+
+                if (cached != null) {
+                    unreadableKeys.add(cacheKey);
+                }
+            } else {
+                refreshIfExpiring(cached, id, cacheKey, cache);
+                hits.add(cachedEntity);
+            }
+        }
+        cache.deleteAllAndWait(unreadableKeys);
+
+        for (final Entity entity : EntityPersistentObjectConverter.withBlobChunks(hits, getRetryingHandler()).values()) {
+            final String id = entity.getKey().getName();
+
+            result.put(id, materialize(entity, entityName + id, scope));
+        }
+        return missingIds;
+    }
+
+    /**
+     * Gets the given ids from the Datastore with one batch call, writing the found entities and the tombstones of the
+     * not found ones back to the cache
+     */
+    Map<String, P> findUncachedMultiple(final Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final List<Key> keys = new ArrayList<>(ids.size());
+        final String entityName = sample.getEntityName();
+
+        for (final String id : ids) {
+            keys.add(buildKey(entityName, id));
+        }
+
+        return materializeMultiple(ids, getRetryingHandler().tryDSGetMultiple(keys), RequestScope.current());
+    }
+
+    /**
+     * Async version of findUniqueIdMultiple. Cache hits are resolved right away and the Datastore batch get for the
+     * misses is started without blocking, so several batch loads could be started at once
+     */
+    public FutureEntityMap<P> findUniqueIdMultipleAsync(final Collection<String> ids) {
+        final Map<String, P> result = new HashMap<>(ids.size());
+        final List<String> missingIds = findCachedMultiple(ids, result);
+
+        if (missingIds.isEmpty()) {
+            return new FutureEntityMap<>(result);
+        }
+
+        final List<Key> keys = new ArrayList<>(missingIds.size());
+        final String entityName = sample.getEntityName();
+
+        for (final String id : missingIds) {
+            keys.add(buildKey(entityName, id));
+        }
+        return new FutureEntityMap<>(result, missingIds, getRetryingHandler().tryDSGetMultipleAsync(keys), this, RequestScope.current());
+    }
+
+    /**
+     * Builds the persistent objects of a Datastore batch get, writing the entities back to the cache with one call and
+     * the tombstones of the requested ids that were not found with another one
+     */
+    Map<String, P> materializeMultiple(final Collection<String> requestedIds, final Map<Key, Entity> entities, final RequestScope scope) {
+        final Map<String, P> result = new HashMap<>(entities.size());
         final String entityName = sample.getEntityName();
+        final MemCache cache = sample.getCachePolicy().get();
+
+        final Map<Key, Entity> stored = EntityPersistentObjectConverter.withBlobChunks(entities.values(), getRetryingHandler());
 
-        for (final String key : ids) {
-            realKeys.add(buildKey(entityName, key));
+        for (final Map.Entry<Key, Entity> entry : stored.entrySet()) {
+            final String id = entry.getKey().getName();
+
+            result.put(id, materialize(entry.getValue(), entityName + id, scope));
         }
 
-        for (final Map.Entry<Key, Entity> entry : getRetryingHandler().tryDSGetMultiple(realKeys).entrySet()) {
-            result.put(entry.getKey().getName(), buildPersistentObjectFromEntity(entry.getValue()));
+        putLoadedInCache(stored.values());
+
+        if (result.size() < requestedIds.size()) {
+            final List<String> notFoundKeys = new ArrayList<>(requestedIds.size() - result.size());
+
+            for (final String id : requestedIds) {
+                if (!result.containsKey(id)) {
+                    notFoundKeys.add(entityName + id);
+                }
+            }
+            cache.putAllNotFound(notFoundKeys);
         }
         return result;
     }
 
+    /**
+     * Caches entities just written to the Datastore, as said by the WritePolicy of the kind. A cached version newer than
+     * the written one is never replaced, comparing their LAST_MODIFICATION with compare-and-set calls
+     */
+    void putWrittenInCache(final Collection<Entity> entities) {
+        final CachePolicy policy = sample.getCachePolicy();
+
+        if (!policy.isEnabled()) {
+            return;
+        }
+
+        if (policy.getWritePolicy() == WritePolicy.INVALIDATE_ON_WRITE) {
+            final List<String> toRemove = new ArrayList<>(entities.size());
+
+            for (final Entity entity : entities) {
+                toRemove.add(sample.getEntityName() + entity.getKey().getName());
+            }
+            policy.get().deleteAll(toRemove);
+        } else {
+            putNewerInCache(entities);
+        }
+    }
+
+    /**
+     * Caches the entities with compare-and-set calls, unless the cached ones have a newer LAST_MODIFICATION
+     */
+    private void putNewerInCache(final Collection<Entity> entities) {
+        final CachePolicy policy = sample.getCachePolicy();
+
+        if (!policy.isEnabled()) {
+            return;
+        }
+
+        final Map<String, Object> values = new HashMap<>(entities.size());
+        final Map<String, Long> versions = new HashMap<>(entities.size());
+        final List<String> toRemove = new ArrayList<>();
+        final String entityName = sample.getEntityName();
+        final String lastModificationName = sample.LAST_MODIFICATION.getPropertyName();
+
+        for (final Entity entity : entities) {
+            final String cacheKey = entityName + entity.getKey().getName();
+            final byte[] value = toCacheValue(entity);
+
+            if (!policy.isCacheable(value.length)) {
+                // the previous value shouldn't be served
+                toRemove.add(cacheKey);
+                continue;
+            }
+            final Object version = entity.getProperty(lastModificationName);
+
+            values.put(cacheKey, value);
+            versions.put(cacheKey, version instanceof Long ? (Long) version : null);
+        }
+
+        final MemCache cache = policy.get();
+
+        cache.deleteAll(toRemove);
+        cache.putAllIfNewer(values, versions, new LastModificationReader(lastModificationName));
+    }
+
+    /**
+     * Caches entities read from the Datastore, only for the keys that are not present: a value written meanwhile has
+     * the same or a newer version, so it is kept
+     */
+    void putLoadedInCache(final Collection<Entity> entities) {
+        final CachePolicy policy = sample.getCachePolicy();
+
+        if (!policy.isEnabled()) {
+            return;
+        }
+
+        final Map<String, Object> values = new HashMap<>(entities.size());
+        final String entityName = sample.getEntityName();
+
+        for (final Entity entity : entities) {
+            final byte[] value = toCacheValue(entity);
+
+            if (policy.isCacheable(value.length)) {
+                values.put(entityName + entity.getKey().getName(), value);
+            }
+        }
+        policy.get().putAllIfAbsent(values);
+    }
+
+    /**
+     * All the entities written to the cache go through here, using the compact CachedEntityCodec encoding
+     */
+    static byte[] toCacheValue(final Entity entity) {
+        return CachedEntityCodec.encode(EntityPersistentObjectConverter.withoutBlobChunks(entity));
+    }
+
+    /**
+     * @return the entity of a cached value, or null if it is missing or it can't be used. Entities cached by
+     * previous versions are accepted as they are
+     */
+    Entity fromCacheValue(final Object cached) {
+        if (cached instanceof byte[]) {
+            return CachedEntityCodec.decode(getEntityName(), (byte[]) cached);
+        }
+        return cached instanceof Entity ? (Entity) cached : null;
+    }
+
+    /**
+     * Builds the persistent object and registers it on the request scope identity map, if any
+     */
+    P materialize(final Entity entity, final String cacheKey, final RequestScope scope) {
+        if (entity == null) {
+            return null;
+        }
+
+        final P result = buildPersistentObjectFromEntity(entity);
+
+        if (scope != null) {
+            scope.putMaterialized(cacheKey, result);
+        }
+        return result;
+    }
+
+    private P getMaterialized(final RequestScope scope, final String cacheKey) {
+        return scope == null ? null : (P) scope.getMaterialized(cacheKey);
+    }
+
+    private boolean isRemoved(final RequestScope scope, final String cacheKey) {
+        return scope != null && scope.isRemoved(cacheKey);
+    }
+
+    private void removeMaterialized(final String cacheKey) {
+        final RequestScope scope = RequestScope.current();
+
+        if (scope != null) {
+            scope.removeMaterialized(cacheKey);
+        }
+    }
+
     public void remove(final String id) {
         final String entityName = sample.getEntityName();
-        final MemCache cache = sample.getCacheStrategy().get();
+        final MemCache cache = sample.getCachePolicy().get();
         final String cacheKey = entityName + id;
 
         cache.remove(cacheKey);
+        removeMaterialized(cacheKey);
 
         getRetryingHandler().tryDSRemove(buildKey(entityName, id));
+
+        invalidateCachedQueries();
     }
 
-    public void removeAsync(final String id) {
+    /**
+     * @return the handle of the delete. It is tracked by the current RequestScope, if any
+     */
+    public WriteCompletion removeAsync(final String id) {
         final String entityName = sample.getEntityName();
-        final MemCache cache = sample.getCacheStrategy().get();
+        final MemCache cache = sample.getCachePolicy().get();
         final String cacheKey = entityName + id;
 
         cache.remove(cacheKey);
+        removeMaterialized(cacheKey);
+
+        final WriteCompletion result = new WriteCompletion(getRetryingHandler().tryDSRemoveAsync(buildKey(entityName, id)));
 
-        getRetryingHandler().tryDSRemoveAsync(buildKey(entityName, id));
+        invalidateCachedQueries();
+
+        return track(result);
     }
 
 //    public Iterator<C> getByGroupId(final int groupId, final BuildQuery _buildQuery) {
@@ -208,16 +881,22 @@ public class DAO<P extends DatastoreEntity> implements Serializable, IDAO<P> {
 
     public void remove(final Collection<String> ids) {
         final String entityName = sample.getEntityName();
-        final MemCache cache = sample.getCacheStrategy().get();
+        final MemCache cache = sample.getCachePolicy().get();
         final List<Key> keys = new ArrayList<>(ids.size());
+        final List<String> cacheKeys = new ArrayList<>(ids.size());
 
         for (final String id : ids) {
             final String cacheKey = entityName + id;
-            cache.remove(cacheKey);
+            cacheKeys.add(cacheKey);
+            removeMaterialized(cacheKey);
             keys.add(buildKey(entityName, id));
         }
 
+        cache.deleteAll(cacheKeys);
+
         getRetryingHandler().tryDSRemove(keys);
+
+        invalidateCachedQueries();
     }
 
     protected P findUnique(final Query.Filter filter) {
@@ -233,19 +912,120 @@ public class DAO<P extends DatastoreEntity> implements Serializable, IDAO<P> {
         return entity == null ? null : buildPersistentObjectFromEntity(entity);
     }
 
-    public void massiveUpload(final Collection<P> list) {
+    /**
+     * Optimistic update of one entity, see updateWithConcurrencyCheck for many
+     *
+     * @return the updated object, or null if it doesn't exist
+     */
+    public P updateWithConcurrencyCheck(final String id, final IEntityMutation<P> mutation) {
+        return updateWithConcurrencyCheck(Collections.singletonList(id), mutation).get(id);
+    }
+
+    /**
+     * Loads the entities, applies the mutation to each one and writes them in one transaction, only if their stored
+     * LAST_MODIFICATION is still the loaded one. Otherwise, they are loaded again from the Datastore and the mutation is
+     * applied again, up to MAX_CONCURRENT_UPDATE_TRIES times. Every entity is its own entity group, so a call can update
+     * up to MAX_TRANSACTION_GROUPS entities. Ids that don't exist are skipped
+     *
+     * @return the updated objects by id
+     */
+    public Map<String, P> updateWithConcurrencyCheck(final Collection<String> ids, final IEntityMutation<P> mutation) {
+        if (ids.size() > MAX_TRANSACTION_GROUPS) {
+            throw new RuntimeException("Trying to update " + ids.size() + " entities of kind [" + getEntityName() + "] in one transaction. Max is " + MAX_TRANSACTION_GROUPS);
+        }
+
+        final String entityName = sample.getEntityName();
+        final String lastModificationName = sample.LAST_MODIFICATION.getPropertyName();
+
+        for (int i = 0; i < MAX_CONCURRENT_UPDATE_TRIES; i++) {
+            // first try could use cached values. If they are stale, next tries go to the Datastore
+            final Map<String, P> objects = i == 0 ? findUniqueIdMultiple(ids) : findUncachedMultiple(ids);
+
+            if (objects.isEmpty()) {
+                return objects;
+            }
+
+            final Map<Key, Object> expectedValues = new HashMap<>(objects.size());
+            final List<Entity> entities = new ArrayList<>(objects.size());
+
+            for (final P persistentObject : objects.values()) {
+                final Long loadedModification = persistentObject.LAST_MODIFICATION.get();
+                expectedValues.put(buildKey(entityName, persistentObject.getId()), loadedModification);
+
+                try {
+                    mutation.mutate(persistentObject);
+                } catch (final Exception _exception) {
+                    throw new RuntimeException("Problems when mutating [" + entityName + "|" + persistentObject.getId() + "]: " + _exception.getMessage(), _exception);
+                }
+
+                // modification time is yyMMddHHmmssSSS plus a 2 digit random suffix, so a write done on the same millisecond
+                // could get the loaded value again
+                do {
+                    persistentObject.setModified();
+                } while (Objects.equals(loadedModification, persistentObject.LAST_MODIFICATION.get()));
+
+                entities.add(buildEntityFromPersistentObject(persistentObject));
+            }
+
+            if (getRetryingHandler().tryDSPutMultipleIfUnchanged(expectedValues, lastModificationName, entities)) {
+                final RequestScope scope = RequestScope.current();
+
+                for (final Entity entity : entities) {
+                    final String cacheKey = entityName + entity.getKey().getName();
+                    final P persistentObject = objects.get(entity.getKey().getName());
+
+                    persistentObject.markAsClean();
+
+                    if (scope != null) {
+                        scope.putMaterialized(cacheKey, persistentObject);
+                    }
+                }
+                putWrittenInCache(entities);
+
+                invalidateCachedQueries();
+
+                return objects;
+            }
+            log.log(Level.WARNING, "Concurrent update found for kind [" + entityName + "] and ids " + ids + ". Try " + (i + 1) + " of " + MAX_CONCURRENT_UPDATE_TRIES);
+        }
+        throw new ConcurrentUpdateException("Could not update entities of kind [" + entityName + "] with ids " + ids + " after " + MAX_CONCURRENT_UPDATE_TRIES + " tries");
+    }
+
+    /**
+     * Writes the objects with chunked batch puts, see MassiveUpload for streaming sources and parallel encoding
+     *
+     * @return the handle of the upload, already done, with a problem for each chunk that could not be written. It is
+     * tracked by the current RequestScope, if any
+     */
+    public WriteCompletion massiveUpload(final Collection<P> list) {
         if (list == null || list.isEmpty()) {
-            return;
+            return WriteCompletion.done();
         }
 
-        // nothing to do with cache
+        final MassiveUpload<P> massiveUpload = new MassiveUpload<>(this);
+        massiveUpload.upload(list);
 
-        final List<Entity> entities = new ArrayList<>(list.size());
+        final WriteCompletion result = WriteCompletion.done();
 
-        for (final P persistenceObject : list) {
-            entities.add(buildEntityFromPersistentObject(persistenceObject));
+        for (final MassiveUpload.Failure failure : massiveUpload.getFailures()) {
+            result.fail(new RuntimeException("Problems when uploading objects of kind [" + getEntityName() + "] with ids " + failure.getIds() + ": " + failure.getProblems().getMessage(), failure.getProblems()));
         }
-        getRetryingHandler().tryDSPutMultipleAsync(entities);
+        return track(result);
+    }
+
+    static int estimateEntityBytes(final Entity entity) {
+        final Object data = entity.getProperty(EntityPersistentObjectConverter.DATA_CONTAINER_PROPERTY);
+        final int chunks = EntityPersistentObjectConverter.countBlobChunks(entity);
+
+        // chunks are close to the max size, except the last one
+        return ESTIMATED_INDEXED_BYTES + (data instanceof Blob ? ((Blob) data).getBytes().length : 0) + chunks * EntityPersistentObjectConverter.BLOB_CHUNK_BYTES;
+    }
+
+    /**
+     * @return the amount of Datastore entities written for the entity, including its blob chunks
+     */
+    static int countPutEntities(final Entity entity) {
+        return 1 + EntityPersistentObjectConverter.countBlobChunks(entity);
     }
 
     public void getForMassiveDownload(final MassiveDownload massiveDownload) {
@@ -335,4 +1115,143 @@ public class DAO<P extends DatastoreEntity> implements Serializable, IDAO<P> {
     public P getReadonlySample() {
         return sample;
     }
+
+    public boolean isQueryResultCaching() {
+        return queryResultCaching;
+    }
+
+    /**
+     * When active, findByQuery and findByProperty cache the resulting ids per query on this kind cache. Every write
+     * of this kind through this DAO invalidates all of them, so repeated queries between writes cost one cache call
+     * plus a cached batch get. The results and the kind generation are kept on MemCache, also with a local tier, so
+     * writes of every instance invalidate them. With localOnly policies each instance keeps its own ones, so writes of
+     * other instances are only seen when they expire, as it happens with the cached entities
+     */
+    protected void setQueryResultCaching(final boolean queryResultCaching) {
+        this.queryResultCaching = queryResultCaching;
+    }
+
+    public boolean isLazyMaterialization() {
+        return lazyMaterialization;
+    }
+
+    /**
+     * When active, materialized entities only get their indexed properties from the Entity. The compressed data is
+     * kept as it is and it is decoded the first time a non indexed property or the DataObject is accessed. Useful
+     * for DAOs mostly used on lists that only read indexed properties
+     */
+    protected void setLazyMaterialization(final boolean lazyMaterialization) {
+        this.lazyMaterialization = lazyMaterialization;
+    }
+
+
+    private static final class LastModificationReader implements IVersionReader {
+
+        private final String propertyName;
+
+
+        private LastModificationReader(final String propertyName) {
+            this.propertyName = propertyName;
+        }
+
+        @Override
+        public Long getVersion(final Object value) {
+            final Object version;
+
+            if (value instanceof byte[]) {
+                version = CachedEntityCodec.readProperty((byte[]) value, propertyName);
+            } else if (value instanceof Entity) {
+                version = ((Entity) value).getProperty(propertyName);
+            } else {
+                version = null;
+            }
+            return version instanceof Long ? (Long) version : null;
+        }
+
+        /**
+         * The last two digits of LAST_MODIFICATION are random, so two writes done on the same millisecond can't be
+         * ordered
+         */
+        @Override
+        public boolean isOrdered(final long currentVersion, final long version) {
+            return currentVersion == version || currentVersion / 100 != version / 100;
+        }
+    }
+
+
+    private static final class CachedQueryResult implements Serializable {
+
+        private static final long serialVersionUID = 5384021843190411276L;
+
+        private final long generation;
+        private final ArrayList<String> ids;
+
+
+        private CachedQueryResult(final long generation, final ArrayList<String> ids) {
+            this.generation = generation;
+            this.ids = ids;
+        }
+    }
+
+
+    private final class PagedQueryIterator implements Iterator<P> {
+
+        private final Query query;
+        // entities of each fetch: the prefetched pages are fetched with one call
+        private final int fetchSize;
+        private final boolean prefetching;
+        private QueryResultList<Entity> nextPage;
+        private Cursor nextCursor = null;
+        private Iterator<Entity> innerIterator = null;
+        private boolean lastPage = false;
+
+
+        private PagedQueryIterator(final Query query, final int pageSize, final int prefetchPages) {
+            if (pageSize < 1 || prefetchPages < 0) {
+                throw new RuntimeException("Invalid pageSize [" + pageSize + "] or prefetchPages [" + prefetchPages + "] for query [" + query + "]");
+            }
+            this.query = query;
+            this.fetchSize = pageSize * Math.max(1, prefetchPages);
+            this.prefetching = prefetchPages > 0;
+            this.nextPage = prefetching ? fetchPage(null) : null;
+        }
+
+        private QueryResultList<Entity> fetchPage(final Cursor cursor) {
+            final FetchOptions fetchOptions = FetchOptions.Builder.withLimit(fetchSize).chunkSize(fetchSize).prefetchSize(fetchSize);
+
+            if (cursor != null) {
+                fetchOptions.startCursor(cursor);
+            }
+
+            return prefetching ? getRetryingHandler().tryExecuteQueryAsync(query, fetchOptions) : getRetryingHandler().tryExecuteQuery(query, fetchOptions);
+        }
+
+        public boolean hasNext() {
+            while (innerIterator == null || !innerIterator.hasNext()) {
+                if (lastPage) {
+                    return false;
+                }
+
+                final QueryResultList<Entity> page = nextPage == null ? fetchPage(nextCursor) : nextPage;
+
+                // blocks until the page arrives
+                nextCursor = page.getCursor();
+                lastPage = nextCursor == null || page.size() < fetchSize;
+                nextPage = prefetching && !lastPage ? fetchPage(nextCursor) : null;
+                innerIterator = page.iterator();
+            }
+            return true;
+        }
+
+        public P next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return buildPersistentObjectFromEntity(innerIterator.next());
+        }
+
+        public void remove() {
+            //nothing to do
+        }
+    }
 }
@@ -3,8 +3,9 @@ package com.zupcat.dao;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.zupcat.cache.MemCache;
-import com.zupcat.model.PersistentObject;
+import com.zupcat.model.DatastoreEntity;
 
+import java.util.Collections;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -13,19 +14,25 @@ import java.util.concurrent.TimeoutException;
 /**
  * Wrapper for async Datastore ops
  */
-public final class FutureEntity<T extends PersistentObject> {
+public final class FutureEntity<T extends DatastoreEntity> {
 
     private final Future<Entity> futureEntity;
+    private final Key key;
+    private final GetBatch batch;
     private final Future<T> future;
     private final MemCache cache;
     private final String cacheKey;
-    private final DAO dao;
+    private final DAO<? extends T> dao;
+    private final RequestScope scope;
 
     public FutureEntity(final T _result) {
         futureEntity = null;
+        key = null;
+        batch = null;
         cache = null;
         cacheKey = null;
         dao = null;
+        scope = null;
 
         future = new Future<T>() {
 
@@ -57,11 +64,34 @@ public final class FutureEntity<T extends PersistentObject> {
 
     }
 
-    public FutureEntity(final Key key, final DAO dao, final MemCache cache, final String cacheKey) {
+    public FutureEntity(final Key key, final DAO<? extends T> dao, final MemCache cache, final String cacheKey) {
+        this(key, dao, cache, cacheKey, null);
+    }
+
+    public FutureEntity(final Key key, final DAO<? extends T> dao, final MemCache cache, final String cacheKey, final RequestScope scope) {
         this.cache = cache;
         this.cacheKey = cacheKey;
         this.futureEntity = dao.getRetryingHandler().tryDSGetAsync(key);
+        this.key = null;
+        this.batch = null;
+        this.dao = dao;
+        this.scope = scope;
+
+        this.future = null;
+    }
+
+    /**
+     * The key is added to the pending batch get of the current thread, which is dispatched on the first get() of any
+     * of its futures
+     */
+    FutureEntity(final Key key, final GetBatch batch, final DAO<? extends T> dao, final MemCache cache, final String cacheKey, final RequestScope scope) {
+        this.cache = cache;
+        this.cacheKey = cacheKey;
+        this.futureEntity = null;
+        this.key = key;
+        this.batch = batch;
         this.dao = dao;
+        this.scope = scope;
 
         this.future = null;
     }
@@ -78,13 +108,15 @@ public final class FutureEntity<T extends PersistentObject> {
         if (future != null) {
             return future.get();
         } else {
-            final Entity entity = futureEntity.get();
+            final Entity entity = batch == null ? futureEntity.get() : batch.get(key);
 
             if (entity != null) {
-                cache.put(cacheKey, entity);
+                dao.putLoadedInCache(Collections.singletonList(entity));
 
-                return (T) dao.buildPersistentObjectFromEntity(entity);
+                return dao.materialize(entity, cacheKey, scope);
             }
+            cache.putNotFound(cacheKey);
+
             return null;
         }
     }
@@ -0,0 +1,62 @@
+package com.zupcat.dao;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.zupcat.model.DatastoreEntity;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Wrapper for async Datastore batch gets. Resolves to a map of id to persistent object
+ */
+public final class FutureEntityMap<T extends DatastoreEntity> {
+
+    private final Map<String, T> cachedResult;
+    private final Collection<String> requestedIds;
+    private final Future<Map<Key, Entity>> futureEntities;
+    private final DAO<T> dao;
+    private final RequestScope scope;
+    private boolean resolved;
+
+
+    public FutureEntityMap(final Map<String, T> _result) {
+        cachedResult = _result;
+        requestedIds = null;
+        futureEntities = null;
+        dao = null;
+        scope = null;
+        resolved = true;
+    }
+
+    public FutureEntityMap(final Map<String, T> _cachedResult, final Collection<String> _requestedIds, final Future<Map<Key, Entity>> _futureEntities, final DAO<T> _dao, final RequestScope _scope) {
+        cachedResult = _cachedResult;
+        requestedIds = _requestedIds;
+        futureEntities = _futureEntities;
+        dao = _dao;
+        scope = _scope;
+        resolved = false;
+    }
+
+    public boolean isDone() {
+        return resolved || futureEntities.isDone();
+    }
+
+    public Map<String, T> get() {
+        try {
+            return getImpl();
+        } catch (final Exception _exception) {
+            throw new RuntimeException(_exception);
+        }
+    }
+
+    private synchronized Map<String, T> getImpl() throws ExecutionException, InterruptedException {
+        if (!resolved) {
+            cachedResult.putAll(dao.materializeMultiple(requestedIds, futureEntities.get(), scope));
+            resolved = true;
+        }
+        return cachedResult;
+    }
+}
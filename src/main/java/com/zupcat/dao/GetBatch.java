@@ -0,0 +1,103 @@
+package com.zupcat.dao;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Collects the keys of the findByIdAsync calls done on the current thread, of any kind, and gets them from the
+ * Datastore with one batch call. The batch is dispatched when any of its FutureEntity is resolved or when it reaches
+ * the Datastore batch get limit. Keys requested after that go to a new batch. The pending batch is released from the
+ * thread when a RequestScope begins or ends, so it is not kept by pooled threads
+ */
+final class GetBatch {
+
+    static final int MAX_KEYS = 1000;
+
+    private static final ThreadLocal<GetBatch> PENDING = new ThreadLocal<>();
+
+    private final RetryingHandler retryingHandler;
+    private final Set<Key> keys = new LinkedHashSet<>();
+    private Future<Map<Key, Entity>> futureEntities;
+
+
+    private GetBatch(final RetryingHandler retryingHandler) {
+        this.retryingHandler = retryingHandler;
+    }
+
+    /**
+     * Adds the key to the pending batch of the current thread, creating it if needed
+     *
+     * @return the batch that will get the key
+     */
+    static GetBatch enqueue(final Key key, final RetryingHandler retryingHandler) {
+        GetBatch batch = PENDING.get();
+
+        if (batch == null || !batch.add(key)) {
+            batch = new GetBatch(retryingHandler);
+            batch.add(key);
+
+            PENDING.set(batch);
+        }
+
+        if (batch.size() >= MAX_KEYS) {
+            batch.dispatch();
+        }
+        return batch;
+    }
+
+    /**
+     * @return the batch of the current thread still waiting to be dispatched, or null if there is none
+     */
+    static GetBatch pending() {
+        final GetBatch batch = PENDING.get();
+
+        return batch == null || batch.isDispatched() ? null : batch;
+    }
+
+    /**
+     * Releases the pending batch of the current thread. Its FutureEntity can still be resolved, dispatching it
+     */
+    static void releasePending() {
+        PENDING.remove();
+    }
+
+    synchronized int size() {
+        return keys.size();
+    }
+
+    synchronized boolean isDispatched() {
+        return futureEntities != null;
+    }
+
+    private synchronized boolean add(final Key key) {
+        if (futureEntities != null) {
+            return false;
+        }
+        keys.add(key);
+
+        return true;
+    }
+
+    synchronized void dispatch() {
+        if (futureEntities == null) {
+            futureEntities = retryingHandler.tryDSGetMultipleAsync(new ArrayList<>(keys));
+        }
+
+        if (PENDING.get() == this) {
+            PENDING.remove();
+        }
+    }
+
+    Entity get(final Key key) throws ExecutionException, InterruptedException {
+        dispatch();
+
+        return futureEntities.get().get(key);
+    }
+}
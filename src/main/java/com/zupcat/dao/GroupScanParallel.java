@@ -0,0 +1,52 @@
+package com.zupcat.dao;
+
+import com.google.appengine.api.datastore.Query;
+import com.zupcat.model.DatastoreEntity;
+import com.zupcat.util.CommonsParallel;
+
+import java.util.Iterator;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scans a whole kind running one cursor query per GROUP_ID shard, with bounded concurrency. Entities are sent to the
+ * consumer as they arrive, so memory doesn't grow with the kind size
+ */
+public final class GroupScanParallel<E extends DatastoreEntity> extends CommonsParallel<Integer> {
+
+    private final DAO<E> dao;
+    private final IEntityConsumer<E> consumer;
+    private final AtomicLong scannedCount = new AtomicLong();
+
+
+    public GroupScanParallel(final DAO<E> _dao, final int maxConcurrency, final ThreadFactory threadFactory, final IEntityConsumer<E> _consumer) {
+        super(maxConcurrency, threadFactory);
+
+        dao = _dao;
+        consumer = _consumer;
+    }
+
+    @Override
+    protected void preExecution() {
+        for (int i = 0; i < DatastoreEntity.MAX_GROUPS; i++) {
+            workOnThread(i);
+        }
+    }
+
+    @Override
+    protected void doWorkConcurrently(final Integer groupId) throws Exception {
+        final Query query = new Query(dao.getEntityName());
+        query.setFilter(new Query.FilterPredicate(dao.getReadonlySample().GROUP_ID.getPropertyName(), Query.FilterOperator.EQUAL, groupId));
+
+        final Iterator<E> iterator = dao.findByQueryIterable(query, DAO.DEFAULT_PAGE_SIZE, 1);
+
+        while (iterator.hasNext()) {
+            consumer.consume(iterator.next());
+            scannedCount.incrementAndGet();
+        }
+    }
+
+    public long getScannedCount() {
+        return scannedCount.get();
+    }
+}
@@ -27,16 +27,18 @@ public interface IDAO<P extends DatastoreEntity> extends Serializable {
 
     Map<String, P> findUniqueIdMultiple(final Collection<String> ids);
 
+    FutureEntityMap<P> findUniqueIdMultipleAsync(final Collection<String> ids);
+
     List<P> getAll();
 
     // Updating methods =====
     void updateOrPersist(final P persistentObject);
 
-    void updateOrPersistAsync(final P persistentObject);
+    WriteCompletion updateOrPersistAsync(final P persistentObject);
 
     void remove(final String id);
 
-    void removeAsync(final String id);
+    WriteCompletion removeAsync(final String id);
 
     void remove(final Collection<String> ids);
 }
@@ -0,0 +1,11 @@
+package com.zupcat.dao;
+
+import com.zupcat.model.DatastoreEntity;
+
+/**
+ * Callback that receives entities as they are loaded. It could be called concurrently from several threads
+ */
+public interface IEntityConsumer<E extends DatastoreEntity> {
+
+    void consume(final E entity) throws Exception;
+}
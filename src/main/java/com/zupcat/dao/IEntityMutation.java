@@ -0,0 +1,12 @@
+package com.zupcat.dao;
+
+import com.zupcat.model.DatastoreEntity;
+
+/**
+ * Changes an entity as part of an optimistic update. It could be called several times for the same id, always with a
+ * freshly loaded entity, so it should only depend on the entity state
+ */
+public interface IEntityMutation<E extends DatastoreEntity> {
+
+    void mutate(final E entity) throws Exception;
+}
@@ -0,0 +1,12 @@
+package com.zupcat.dao;
+
+/**
+ * Receives the progress of a MassiveUpload
+ */
+public interface IUploadProgressListener {
+
+    /**
+     * Called after each chunk is written or fails
+     */
+    void progress(final long writtenCount, final int failuresCount);
+}
@@ -35,7 +35,16 @@ public final class LoadMultipleParallel<E extends DatastoreEntity> extends Commo
 
     @Override
     protected void preExecution() {
-        final Iterator<String> iterator = ids.iterator();
+        final Collection<String> pendingIds;
+
+        if (propertyMeta == null) {
+            // one batch cache call for every id, so threads only go to the Datastore for the misses
+            pendingIds = dao.findCachedMultiple(ids, result);
+        } else {
+            pendingIds = ids;
+        }
+
+        final Iterator<String> iterator = pendingIds.iterator();
         final List<String> idPack = new ArrayList<>(QUERY_PACK_SIZE);
 
         while (iterator.hasNext()) {
@@ -61,7 +70,7 @@ public final class LoadMultipleParallel<E extends DatastoreEntity> extends Commo
         Map<String, E> tempResult = new HashMap<>(QUERY_PACK_SIZE);
 
         if (propertyMeta == null) {
-            tempResult.putAll(dao.findUniqueIdMultiple(ids));
+            tempResult.putAll(dao.findUncachedMultiple(ids));
 
         } else {
             final Query.FilterPredicate filterPredicate = new Query.FilterPredicate(propertyMeta.getPropertyName(), Query.FilterOperator.IN, ids);
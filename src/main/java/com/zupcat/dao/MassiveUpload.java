@@ -0,0 +1,295 @@
+package com.zupcat.dao;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.zupcat.model.DatastoreEntity;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streaming bulk writer. Objects are read from the source as needed, encoded (in parallel if a ThreadFactory is set),
+ * grouped in chunks limited by entity count and bytes, and written with async batch puts. Only a bounded number of
+ * encodings and puts are in flight at once, so memory doesn't depend on the source size. Chunks that fail are retried
+ * once synchronously and then reported, without stopping the upload
+ */
+public final class MassiveUpload<P extends DatastoreEntity> {
+
+    private static final Logger log = Logger.getLogger(MassiveUpload.class.getName());
+
+    private final DAO<P> dao;
+    private int maxChunkEntities = DAO.MAX_PUT_ENTITIES;
+    private int maxChunkBytes = DAO.MAX_PUT_BYTES;
+    private int maxPutsInFlight = 4;
+    private ThreadFactory threadFactory;
+    private int encodingConcurrency = 1;
+    private IUploadProgressListener progressListener;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+
+    private ExecutorService encodingExecutor;
+    private final Deque<Future<List<Entity>>> pendingEncodings = new ArrayDeque<>();
+    private final Deque<PendingPut> pendingPuts = new ArrayDeque<>();
+    private List<Entity> chunk;
+    private int chunkBytes;
+    private int chunkEntities;
+
+
+    public MassiveUpload(final DAO<P> dao) {
+        this.dao = dao;
+    }
+
+    public void setMaxChunkEntities(final int maxChunkEntities) {
+        this.maxChunkEntities = maxChunkEntities;
+    }
+
+    public void setMaxChunkBytes(final int maxChunkBytes) {
+        this.maxChunkBytes = maxChunkBytes;
+    }
+
+    public void setMaxPutsInFlight(final int maxPutsInFlight) {
+        this.maxPutsInFlight = maxPutsInFlight;
+    }
+
+    /**
+     * Encodes the objects on threads created by the given factory. By default they are encoded on the caller thread
+     */
+    public void setEncodingThreads(final ThreadFactory threadFactory, final int encodingConcurrency) {
+        this.threadFactory = threadFactory;
+        this.encodingConcurrency = encodingConcurrency;
+    }
+
+    public void setProgressListener(final IUploadProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public void upload(final Iterable<? extends P> source) {
+        upload(source.iterator());
+    }
+
+    /**
+     * Writes every object of the source, blocking until all of them are written or reported as failures
+     */
+    public void upload(final Iterator<? extends P> source) {
+        chunk = new ArrayList<>(maxChunkEntities);
+        chunkBytes = 0;
+        chunkEntities = 0;
+
+        if (threadFactory != null) {
+            encodingExecutor = Executors.newFixedThreadPool(encodingConcurrency, threadFactory);
+        }
+
+        try {
+            List<P> batch = new ArrayList<>(maxChunkEntities);
+
+            while (source.hasNext()) {
+                batch.add(source.next());
+
+                if (batch.size() >= maxChunkEntities) {
+                    submitEncoding(batch);
+                    batch = new ArrayList<>(maxChunkEntities);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                submitEncoding(batch);
+            }
+
+            while (!pendingEncodings.isEmpty()) {
+                addEncoded(pendingEncodings.poll());
+            }
+
+            if (!chunk.isEmpty()) {
+                dispatchPut();
+            }
+
+            while (!pendingPuts.isEmpty()) {
+                completePut(pendingPuts.poll());
+            }
+        } finally {
+            if (encodingExecutor != null) {
+                encodingExecutor.shutdownNow();
+                encodingExecutor = null;
+            }
+            dao.invalidateCachedQueries();
+        }
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    public List<Failure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+    private void submitEncoding(final List<P> batch) {
+        final Callable<List<Entity>> encoding = new Callable<List<Entity>>() {
+            @Override
+            public List<Entity> call() {
+                final List<Entity> result = new ArrayList<>(batch.size());
+
+                for (final P persistentObject : batch) {
+                    try {
+                        result.add(dao.buildEntityFromPersistentObject(persistentObject));
+                    } catch (final RuntimeException _exception) {
+                        addFailure(Collections.singletonList(persistentObject.getId()), _exception);
+                    }
+                }
+                return result;
+            }
+        };
+
+        if (encodingExecutor == null) {
+            final FutureTask<List<Entity>> task = new FutureTask<>(encoding);
+            task.run();
+
+            pendingEncodings.add(task);
+        } else {
+            pendingEncodings.add(encodingExecutor.submit(encoding));
+        }
+
+        // backpressure: no more than two batches per encoding thread are kept in memory
+        while (pendingEncodings.size() > encodingConcurrency * 2) {
+            addEncoded(pendingEncodings.poll());
+        }
+    }
+
+    private void addEncoded(final Future<List<Entity>> encoding) {
+        final List<Entity> entities;
+
+        try {
+            entities = encoding.get();
+        } catch (final InterruptedException | ExecutionException _exception) {
+            // encoding problems are reported per object, so this is not expected
+            throw new RuntimeException("Problems when encoding objects of kind [" + dao.getEntityName() + "]: " + _exception.getMessage(), _exception);
+        }
+
+        for (final Entity entity : entities) {
+            final int entityBytes = DAO.estimateEntityBytes(entity);
+            final int putEntities = DAO.countPutEntities(entity);
+
+            if (!chunk.isEmpty() && (chunkEntities + putEntities > maxChunkEntities || chunkBytes + entityBytes > maxChunkBytes)) {
+                dispatchPut();
+            }
+            chunk.add(entity);
+            chunkBytes += entityBytes;
+            chunkEntities += putEntities;
+        }
+    }
+
+    private void dispatchPut() {
+        while (pendingPuts.size() >= maxPutsInFlight) {
+            completePut(pendingPuts.poll());
+        }
+
+        final List<Entity> entities = chunk;
+        chunk = new ArrayList<>(maxChunkEntities);
+        chunkBytes = 0;
+        chunkEntities = 0;
+
+        Future<List<Key>> future = null;
+
+        try {
+            future = dao.getRetryingHandler().tryDSPutMultipleAsync(entities);
+        } catch (final RuntimeException _exception) {
+            addFailure(getIds(entities), _exception);
+        }
+
+        if (future != null) {
+            pendingPuts.add(new PendingPut(entities, future));
+        }
+    }
+
+    private void completePut(final PendingPut put) {
+        try {
+            put.future.get();
+        } catch (final InterruptedException | ExecutionException _exception) {
+            log.log(Level.WARNING, "Problems when writing chunk of " + put.entities.size() + " entities. Retrying: " + _exception.getMessage(), _exception);
+
+            try {
+                dao.getRetryingHandler().tryDSPutMultiple(put.entities);
+            } catch (final RuntimeException _retryException) {
+                addFailure(getIds(put.entities), _retryException);
+                return;
+            }
+        }
+
+        final List<String> cacheKeys = new ArrayList<>(put.entities.size());
+        final String entityName = dao.getEntityName();
+
+        for (final Entity entity : put.entities) {
+            cacheKeys.add(entityName + entity.getKey().getName());
+        }
+
+        // cached values and tombstones are stale now
+        dao.getReadonlySample().getCachePolicy().get().deleteAll(cacheKeys);
+
+        writtenCount.addAndGet(put.entities.size());
+        notifyProgress();
+    }
+
+    private void addFailure(final List<String> ids, final Throwable problems) {
+        log.log(Level.SEVERE, "Problems when uploading objects of kind [" + dao.getEntityName() + "] with ids " + ids + ": " + problems.getMessage(), problems);
+
+        failures.add(new Failure(ids, problems));
+        notifyProgress();
+    }
+
+    private void notifyProgress() {
+        if (progressListener != null) {
+            progressListener.progress(writtenCount.get(), getFailures().size());
+        }
+    }
+
+    private static List<String> getIds(final List<Entity> entities) {
+        final List<String> result = new ArrayList<>(entities.size());
+
+        for (final Entity entity : entities) {
+            result.add(entity.getKey().getName());
+        }
+        return result;
+    }
+
+
+    public static final class Failure {
+
+        private final List<String> ids;
+        private final Throwable problems;
+
+        private Failure(final List<String> ids, final Throwable problems) {
+            this.ids = ids;
+            this.problems = problems;
+        }
+
+        public List<String> getIds() {
+            return ids;
+        }
+
+        public Throwable getProblems() {
+            return problems;
+        }
+    }
+
+
+    private static final class PendingPut {
+
+        private final List<Entity> entities;
+        private final Future<List<Key>> future;
+
+        private PendingPut(final List<Entity> entities, final Future<List<Key>> future) {
+            this.entities = entities;
+            this.future = future;
+        }
+    }
+}
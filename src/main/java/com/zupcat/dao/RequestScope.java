@@ -0,0 +1,219 @@
+package com.zupcat.dao;
+
+import com.google.appengine.api.ThreadManager;
+import com.zupcat.model.DatastoreEntity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Optional per-request state for DAO operations. It is bound to the current thread, so it should be opened at request
+ * start and closed at request end, usually from a servlet filter:
+ * <p>
+ * RequestScope.begin();
+ * try {
+ * chain.doFilter(request, response);
+ * } finally {
+ * RequestScope.end();
+ * }
+ * <p>
+ * While a scope is active, DAOs keep an identity map of every materialized entity, so finding the same id several
+ * times in the same request returns the same instance without going to MemCache or deserializing it again.
+ * <p>
+ * Scopes opened with beginWithWriteBehind also buffer the updateOrPersistAsync calls, keeping the latest object for
+ * each key, and write them with batch calls when the buffer is full or when the scope ends. Buffered objects are seen
+ * by finds on the same request, but not by queries until they are flushed.
+ * <p>
+ * Async writes done while a scope is active are tracked, so awaitAll can be used as a barrier before work that needs
+ * them, and end waits for them too.
+ * <p>
+ * Early refreshes of cached entities close to expire are started during the request and finished by end, so the
+ * request doesn't wait for them.
+ */
+public final class RequestScope {
+
+    private static final ThreadLocal<RequestScope> CURRENT = new ThreadLocal<>();
+    private static final int MAX_TRACKED_WRITES = 100;
+
+    private final Map<String, DatastoreEntity> identityMap = new HashMap<>();
+    private final Set<String> removedKeys = new HashSet<>();
+    private final WriteBehindBuffer writeBehindBuffer;
+    private final List<WriteCompletion> asyncWrites = new ArrayList<>();
+    private final List<Runnable> refreshes = new ArrayList<>();
+
+
+    private RequestScope(final WriteBehindBuffer writeBehindBuffer) {
+        this.writeBehindBuffer = writeBehindBuffer;
+    }
+
+    public static RequestScope begin() {
+        return begin(null);
+    }
+
+    public static RequestScope beginWithWriteBehind() {
+        return beginWithWriteBehind(ThreadManager.currentRequestThreadFactory());
+    }
+
+    /**
+     * @param threadFactory used to create the threads that write the buffered objects
+     */
+    public static RequestScope beginWithWriteBehind(final ThreadFactory threadFactory) {
+        return begin(new WriteBehindBuffer(threadFactory));
+    }
+
+    private static RequestScope begin(final WriteBehindBuffer writeBehindBuffer) {
+        final RequestScope scope = new RequestScope(writeBehindBuffer);
+
+        // keys enqueued by a previous use of the thread don't join the batches of this request
+        GetBatch.releasePending();
+        CURRENT.set(scope);
+
+        return scope;
+    }
+
+    /**
+     * Ends the scope of the current thread, writing the buffered objects and waiting for them and for the async writes
+     * of the request
+     *
+     * @return the handle of the writes, with the problems found when writing them
+     */
+    public static WriteCompletion end() {
+        final RequestScope scope = CURRENT.get();
+        WriteCompletion result = null;
+
+        try {
+            if (scope != null) {
+                result = scope.waitForWrites();
+            }
+        } finally {
+            if (scope != null) {
+                scope.finishRefreshes();
+                scope.clear();
+            }
+            GetBatch.releasePending();
+            CURRENT.remove();
+        }
+        return result == null ? WriteCompletion.done() : result;
+    }
+
+    /**
+     * Starts writing the buffered objects without waiting for them
+     */
+    public WriteCompletion flush() {
+        return writeBehindBuffer == null ? WriteCompletion.done() : writeBehindBuffer.flush();
+    }
+
+    /**
+     * Barrier for the writes of this request: writes the buffered objects and waits for them and for every async write
+     * started so far, throwing a RuntimeException with all the problems found
+     */
+    public void awaitAll() {
+        waitForWrites().await();
+    }
+
+    private WriteCompletion waitForWrites() {
+        final List<WriteCompletion> writes;
+
+        synchronized (asyncWrites) {
+            writes = new ArrayList<>(asyncWrites);
+            asyncWrites.clear();
+        }
+
+        if (writeBehindBuffer != null) {
+            writes.add(writeBehindBuffer.flushAndWait());
+        }
+
+        final WriteCompletion result = WriteCompletion.all(writes);
+        result.waitForAll();
+
+        return result;
+    }
+
+    /**
+     * Tracks an async write started during this request. Finished writes without problems are dropped from time to
+     * time, so long requests don't keep all of them
+     */
+    void track(final WriteCompletion write) {
+        synchronized (asyncWrites) {
+            if (asyncWrites.size() >= MAX_TRACKED_WRITES) {
+                for (final Iterator<WriteCompletion> iterator = asyncWrites.iterator(); iterator.hasNext(); ) {
+                    final WriteCompletion tracked = iterator.next();
+
+                    if (tracked.isDone() && tracked.getFailures().isEmpty()) {
+                        iterator.remove();
+                    }
+                }
+            }
+            asyncWrites.add(write);
+        }
+    }
+
+    /**
+     * Adds the completion of an early refresh started during this request, run when the scope ends
+     */
+    void addRefresh(final Runnable refresh) {
+        synchronized (refreshes) {
+            refreshes.add(refresh);
+        }
+    }
+
+    private void finishRefreshes() {
+        final List<Runnable> pending;
+
+        synchronized (refreshes) {
+            pending = new ArrayList<>(refreshes);
+            refreshes.clear();
+        }
+
+        for (final Runnable refresh : pending) {
+            refresh.run();
+        }
+    }
+
+    WriteBehindBuffer getWriteBehindBuffer() {
+        return writeBehindBuffer;
+    }
+
+    /**
+     * @return the scope bound to the current thread, or null if there is none
+     */
+    public static RequestScope current() {
+        return CURRENT.get();
+    }
+
+    public DatastoreEntity getMaterialized(final String cacheKey) {
+        return identityMap.get(cacheKey);
+    }
+
+    public void putMaterialized(final String cacheKey, final DatastoreEntity persistentObject) {
+        identityMap.put(cacheKey, persistentObject);
+        removedKeys.remove(cacheKey);
+    }
+
+    /**
+     * Marks the object as removed during this request, so later finds don't hit a cache delete still in flight
+     */
+    public void removeMaterialized(final String cacheKey) {
+        identityMap.remove(cacheKey);
+        removedKeys.add(cacheKey);
+
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.discard(cacheKey);
+        }
+    }
+
+    public boolean isRemoved(final String cacheKey) {
+        return removedKeys.contains(cacheKey);
+    }
+
+    public void clear() {
+        identityMap.clear();
+        removedKeys.clear();
+    }
+}
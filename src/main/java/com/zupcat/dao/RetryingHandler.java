@@ -2,15 +2,22 @@ package com.zupcat.dao;
 
 import com.google.appengine.api.datastore.*;
 import com.zupcat.exception.NoMoreRetriesException;
+import com.zupcat.model.EntityPersistentObjectConverter;
 import com.zupcat.service.SimpleDatastoreServiceFactory;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -77,6 +84,28 @@ public final class RetryingHandler implements Serializable {
         return result[0];
     }
 
+    /**
+     * Starts the query through the async Datastore service. The returned list is lazy: it blocks on first access until
+     * the results arrive, so the caller could do other work in the meantime
+     */
+    public QueryResultList<Entity> tryExecuteQueryAsync(final Query query, final FetchOptions fetchOptions) {
+        final QueryResultList<Entity>[] result = new QueryResultList[1];
+        result[0] = null;
+
+        tryClosureAsync(new AsyncClosure<Void>() {
+            public Future<Void> execute(final AsyncDatastoreService datastore, final boolean loggingActivated) throws ExecutionException, InterruptedException {
+                if (loggingActivated) {
+                    log.log(Level.SEVERE, "PERF - tryExecuteQueryAsync", new Exception());
+                }
+
+                result[0] = datastore.prepare(query).asQueryResultList(fetchOptions);
+                return null;
+            }
+        });
+
+        return result[0];
+    }
+
     public void tryDSRemove(final Collection<Key> entityKeys) {
         tryClosure(new Closure() {
             public void execute(final DatastoreService datastore, final Object[] results, final boolean loggingActivated) {
@@ -85,7 +114,16 @@ public final class RetryingHandler implements Serializable {
                     log.log(Level.SEVERE, "PERF - tryDSRemoveMultiple", new Exception());
                 }
 
-                datastore.delete(entityKeys);
+                final List<Key> entityKeyList = new ArrayList<>(entityKeys);
+
+                for (int i = 0; i < entityKeyList.size(); i += DAO.MAX_PUT_ENTITIES) {
+                    final List<Key> batch = entityKeyList.subList(i, Math.min(entityKeyList.size(), i + DAO.MAX_PUT_ENTITIES));
+                    final List<Key> keys = addBlobChunkKeys(batch, datastore.get(batch));
+
+                    for (int j = 0; j < keys.size(); j += DAO.MAX_PUT_ENTITIES) {
+                        datastore.delete(keys.subList(j, Math.min(keys.size(), j + DAO.MAX_PUT_ENTITIES)));
+                    }
+                }
             }
         }, null);
     }
@@ -127,6 +165,17 @@ public final class RetryingHandler implements Serializable {
         });
     }
 
+    public Future<Map<Key, Entity>> tryDSGetMultipleAsync(final Collection<Key> keys) {
+        return tryClosureAsync(new AsyncClosure<Map<Key, Entity>>() {
+            public Future<Map<Key, Entity>> execute(final AsyncDatastoreService datastore, final boolean loggingActivated) throws ExecutionException, InterruptedException {
+                if (loggingActivated) {
+                    log.log(Level.SEVERE, "PERF - tryDSGetMultipleAsync", new Exception());
+                }
+                return datastore.get(keys);
+            }
+        });
+    }
+
     public void tryDSRemove(final Key entityKey) {
         tryClosure(new Closure() {
             public void execute(final DatastoreService datastore, final Object[] results, final boolean loggingActivated) {
@@ -134,93 +183,314 @@ public final class RetryingHandler implements Serializable {
                     log.log(Level.SEVERE, "PERF - tryDSRemove", new Exception());
                 }
 
-                datastore.delete(entityKey);
+                final List<Key> keys = Collections.singletonList(entityKey);
+
+                datastore.delete(addBlobChunkKeys(keys, datastore.get(keys)));
             }
         }, null);
     }
 
-    public void tryDSRemoveAsync(final Key key) {
-        tryClosureAsync(new AsyncClosure<Void>() {
+    /**
+     * Only the call is retried. Problems found when the delete is done are thrown by the returned future. The entity is
+     * read first, with a get by key, to know the blob chunk entities to delete with it
+     */
+    public Future<Void> tryDSRemoveAsync(final Key key) {
+        return tryClosureAsync(new AsyncClosure<Void>() {
 
             public Future<Void> execute(final AsyncDatastoreService datastore, final boolean loggingActivated) throws ExecutionException, InterruptedException {
                 if (loggingActivated) {
                     log.log(Level.SEVERE, "PERF - tryDSRemoveAsync", new Exception());
                 }
 
-                return datastore.delete(key);
+                final List<Key> keys = Collections.singletonList(key);
+
+                return datastore.delete(addBlobChunkKeys(keys, datastore.get(keys).get()));
             }
         });
     }
 
-    public void tryDSPutMultipleAsync(final Iterable<Entity> entities) {
-        tryClosureAsync(new AsyncClosure<List<Key>>() {
+    /**
+     * @return the keys with the ones of the blob chunk entities recorded by the stored entities
+     */
+    private static List<Key> addBlobChunkKeys(final Collection<Key> keys, final Map<Key, Entity> storedEntities) {
+        final List<Key> result = new ArrayList<>(keys);
+
+        for (final Entity stored : storedEntities.values()) {
+            result.addAll(EntityPersistentObjectConverter.buildBlobChunkKeys(stored.getKey(), EntityPersistentObjectConverter.countBlobChunks(stored)));
+        }
+        return result;
+    }
+
+    /**
+     * Only the call is retried. Problems found when the put is done are thrown by the returned future. Keys of blob
+     * chunk entities are included in the result. Entities with split binary data are put by tryDSPutWithBlobChunks
+     * before returning
+     */
+    public Future<List<Key>> tryDSPutMultipleAsync(final Iterable<Entity> entities) {
+        final List<Entity> toPut = new ArrayList<>();
+        final List<Key> chunkedKeys = tryDSPutWithBlobChunks(entities, toPut);
+
+        if (toPut.isEmpty()) {
+            return new KeysFuture(null, chunkedKeys);
+        }
+
+        return new KeysFuture(tryClosureAsync(new AsyncClosure<List<Key>>() {
 
             public Future<List<Key>> execute(final AsyncDatastoreService datastore, final boolean loggingActivated) throws ExecutionException, InterruptedException {
                 if (loggingActivated) {
                     log.log(Level.SEVERE, "PERF - tryDSPutMultipleAsync", new Exception());
                 }
 
-                final Future<List<Key>> listFuture = datastore.put(entities);
-
-                listFuture.get();
-
-                return listFuture;
+                return datastore.put(toPut);
             }
-        });
+        }), chunkedKeys);
     }
 
 
-//    public void tryDSPutMultiple(final Iterable<Entity> entities) {
-//        tryClosure(new Closure() {
-//            public void execute(final DatastoreService datastore, final Object[] results, final boolean loggingActivated) {
-//                if (loggingActivated) {
-//                    log.log(Level.SEVERE, "PERF - tryDSPutMultiple", new Exception());
-//                }
-//                datastore.put(entities);
-//            }
-//        }, null);
-//    }
+    public void tryDSPutMultiple(final Iterable<Entity> entities) {
+        final List<Entity> toPut = new ArrayList<>();
+        tryDSPutWithBlobChunks(entities, toPut);
 
-    public Map<Key, Entity> tryDSGetMultiple(final Collection<Key> keys) {
-        final Map<Key, Entity> result = new HashMap<>();
+        if (toPut.isEmpty()) {
+            return;
+        }
 
-        if (keys != null && !keys.isEmpty()) {
-            tryClosure(new Closure() {
+        tryClosure(new Closure() {
+            public void execute(final DatastoreService datastore, final Object[] results, final boolean loggingActivated) {
+                if (loggingActivated) {
+                    log.log(Level.SEVERE, "PERF - tryDSPutMultiple", new Exception());
+                }
+                datastore.put(toPut);
+            }
+        }, null);
+    }
 
-                @Override
+    /**
+     * Puts each entity with split binary data and its chunk entities in one transaction, so readers never join chunks
+     * of different versions. The chunks of the stored version beyond the new count are deleted in the same transaction.
+     * The commit waits for the put, so this is always synchronous
+     *
+     * @param others where the entities without BLOB_CHUNKS_PROPERTY are added, to be put as usual
+     * @return the keys of the entities put, with the ones of their chunks
+     */
+    private List<Key> tryDSPutWithBlobChunks(final Iterable<Entity> entities, final List<Entity> others) {
+        final List<Key> result = new ArrayList<>();
+
+        for (final Entity entity : entities) {
+            if (!entity.hasProperty(EntityPersistentObjectConverter.BLOB_CHUNKS_PROPERTY)) {
+                others.add(entity);
+                continue;
+            }
+            final List<Entity> toPut = EntityPersistentObjectConverter.expandBlobChunks(Collections.singletonList(entity));
+
+            tryClosure(new Closure() {
                 public void execute(final DatastoreService datastore, final Object[] results, final boolean loggingActivated) {
                     if (loggingActivated) {
-                        log.log(Level.SEVERE, "PERF - tryDSGetMultiple", new Exception());
+                        log.log(Level.SEVERE, "PERF - tryDSPutWithBlobChunks", new Exception());
+                    }
+
+                    final Transaction transaction = datastore.beginTransaction();
+
+                    try {
+                        int storedChunks = 0;
+
+                        try {
+                            storedChunks = EntityPersistentObjectConverter.countBlobChunks(datastore.get(transaction, entity.getKey()));
+                        } catch (final EntityNotFoundException _exception) {
+                            // nothing to delete
+                        }
+                        final int chunks = EntityPersistentObjectConverter.countBlobChunks(entity);
+
+                        datastore.put(transaction, toPut);
+
+                        if (storedChunks > chunks) {
+                            final List<Key> staleChunks = EntityPersistentObjectConverter.buildBlobChunkKeys(entity.getKey(), storedChunks);
+                            datastore.delete(transaction, staleChunks.subList(chunks, storedChunks));
+                        }
+                        transaction.commit();
+                    } finally {
+                        if (transaction.isActive()) {
+                            transaction.rollback();
+                        }
                     }
-                    result.putAll(datastore.get(keys));
                 }
             }, null);
+
+            for (final Entity written : toPut) {
+                result.add(written.getKey());
+            }
         }
         return result;
     }
 
-    public void tryDSPut(final Entity entity) {
+    /**
+     * Gets the entities and the chunk entities of their binary data in one transaction, so the chunks are of the same
+     * version as the entity. Keys of more than one group use a cross group transaction, so up to
+     * DAO.MAX_TRANSACTION_GROUPS keys are allowed
+     *
+     * @return the found entities, with the chunks as in-memory properties
+     */
+    public Map<Key, Entity> tryDSGetWithBlobChunks(final Collection<Key> keys) {
+        final Map<Key, Entity> result = new HashMap<>();
+
+        if (keys == null || keys.isEmpty()) {
+            return result;
+        }
+
         tryClosure(new Closure() {
             public void execute(final DatastoreService datastore, final Object[] results, final boolean loggingActivated) {
+                if (loggingActivated) {
+                    log.log(Level.SEVERE, "PERF - tryDSGetWithBlobChunks", new Exception());
+                }
+
+                final Transaction transaction = datastore.beginTransaction(TransactionOptions.Builder.withXG(keys.size() > 1));
+
+                try {
+                    final Map<Key, Entity> entities = datastore.get(transaction, keys);
+                    final List<Key> chunkKeys = new ArrayList<>();
+
+                    for (final Entity entity : entities.values()) {
+                        chunkKeys.addAll(EntityPersistentObjectConverter.buildBlobChunkKeys(entity.getKey(), EntityPersistentObjectConverter.countBlobChunks(entity)));
+                    }
+                    final Map<Key, Entity> chunks = chunkKeys.isEmpty() ? Collections.<Key, Entity>emptyMap() : datastore.get(transaction, chunkKeys);
+
+                    result.clear();
+
+                    for (final Entity entity : entities.values()) {
+                        result.put(entity.getKey(), EntityPersistentObjectConverter.joinBlobChunks(entity, chunks));
+                    }
+                } finally {
+                    // nothing was written
+                    if (transaction.isActive()) {
+                        transaction.rollback();
+                    }
+                }
+            }
+        }, null);
+
+        return result;
+    }
+
+    /**
+     * Puts the entities in a cross group transaction, only if the stored value of the given property is the expected
+     * one for every key. A null expected value means the entity should not exist
+     *
+     * @return false if any value was different or the transaction collided with another write
+     */
+    public boolean tryDSPutMultipleIfUnchanged(final Map<Key, Object> expectedValues, final String propertyName, final Collection<Entity> entities) {
+        final boolean[] result = new boolean[1];
 
+        tryClosure(new Closure() {
+            public void execute(final DatastoreService datastore, final Object[] results, final boolean loggingActivated) {
                 if (loggingActivated) {
-                    log.log(Level.SEVERE, "PERF - tryDSPut", new Exception());
+                    log.log(Level.SEVERE, "PERF - tryDSPutMultipleIfUnchanged", new Exception());
                 }
 
-                datastore.put(entity);
+                final Transaction transaction = datastore.beginTransaction(TransactionOptions.Builder.withXG(expectedValues.size() > 1));
+
+                try {
+                    final Map<Key, Entity> stored = datastore.get(transaction, expectedValues.keySet());
+
+                    for (final Map.Entry<Key, Object> entry : expectedValues.entrySet()) {
+                        final Entity storedEntity = stored.get(entry.getKey());
+                        final Object storedValue = storedEntity == null ? null : storedEntity.getProperty(propertyName);
+
+                        if (!Objects.equals(entry.getValue(), storedValue)) {
+                            result[0] = false;
+                            return;
+                        }
+                    }
+
+                    datastore.put(transaction, EntityPersistentObjectConverter.expandBlobChunks(entities));
+
+                    for (final Entity entity : entities) {
+                        final Entity storedEntity = stored.get(entity.getKey());
+                        final int storedChunks = storedEntity == null ? 0 : EntityPersistentObjectConverter.countBlobChunks(storedEntity);
+                        final int chunks = EntityPersistentObjectConverter.countBlobChunks(entity);
+
+                        if (storedChunks > chunks) {
+                            datastore.delete(transaction, EntityPersistentObjectConverter.buildBlobChunkKeys(entity.getKey(), storedChunks).subList(chunks, storedChunks));
+                        }
+                    }
+                    transaction.commit();
+
+                    result[0] = true;
+                } catch (final ConcurrentModificationException _exception) {
+                    result[0] = false;
+                } finally {
+                    if (transaction.isActive()) {
+                        transaction.rollback();
+                    }
+                }
             }
         }, null);
+
+        return result[0];
     }
 
-    public void tryDSPutAsync(final Entity entity) {
-        tryClosureAsync(new AsyncClosure<Key>() {
-            public Future<Key> execute(final AsyncDatastoreService datastore, final boolean loggingActivated) throws ExecutionException, InterruptedException {
+    /**
+     * Adds the delta to a long property of the entity in a transaction, creating the entity if it doesn't exist.
+     * Collisions with other writes of the same entity are retried
+     */
+    public void tryDSIncrement(final Key key, final String propertyName, final long delta) {
+        tryClosure(new Closure() {
+            public void execute(final DatastoreService datastore, final Object[] results, final boolean loggingActivated) {
                 if (loggingActivated) {
-                    log.log(Level.SEVERE, "PERF - tryDSPutAsync", new Exception());
+                    log.log(Level.SEVERE, "PERF - tryDSIncrement", new Exception());
+                }
+
+                final Transaction transaction = datastore.beginTransaction();
+
+                try {
+                    Entity entity;
+
+                    try {
+                        entity = datastore.get(transaction, key);
+                    } catch (final EntityNotFoundException _exception) {
+                        entity = new Entity(key);
+                    }
+                    final Long current = (Long) entity.getProperty(propertyName);
+
+                    entity.setUnindexedProperty(propertyName, current == null ? delta : current + delta);
+
+                    datastore.put(transaction, entity);
+                    transaction.commit();
+                } finally {
+                    if (transaction.isActive()) {
+                        transaction.rollback();
+                    }
                 }
-                return datastore.put(entity);
             }
-        });
+        }, null);
+    }
+
+    public Map<Key, Entity> tryDSGetMultiple(final Collection<Key> keys) {
+        final Map<Key, Entity> result = new HashMap<>();
+
+        if (keys != null && !keys.isEmpty()) {
+            tryClosure(new Closure() {
+
+                @Override
+                public void execute(final DatastoreService datastore, final Object[] results, final boolean loggingActivated) {
+                    if (loggingActivated) {
+                        log.log(Level.SEVERE, "PERF - tryDSGetMultiple", new Exception());
+                    }
+                    result.putAll(datastore.get(keys));
+                }
+            }, null);
+        }
+        return result;
+    }
+
+    public void tryDSPut(final Entity entity) {
+        tryDSPutMultiple(Collections.singletonList(entity));
+    }
+
+    /**
+     * Only the call is retried. Problems found when the put is done are thrown by the returned future
+     */
+    public Future<List<Key>> tryDSPutAsync(final Entity entity) {
+        return tryDSPutMultipleAsync(Collections.singletonList(entity));
     }
 
     private void tryClosure(final Closure closure, final Object[] results) {
@@ -287,6 +557,57 @@ public final class RetryingHandler implements Serializable {
     }
 
 
+    /**
+     * Result of a put done partly with an async call and partly with already finished transactions
+     */
+    private static final class KeysFuture implements Future<List<Key>> {
+
+        private final Future<List<Key>> pending;
+        private final List<Key> done;
+
+
+        private KeysFuture(final Future<List<Key>> pending, final List<Key> done) {
+            this.pending = pending;
+            this.done = done;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return pending != null && pending.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return pending != null && pending.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return pending == null || pending.isDone();
+        }
+
+        @Override
+        public List<Key> get() throws InterruptedException, ExecutionException {
+            return join(pending == null ? null : pending.get());
+        }
+
+        @Override
+        public List<Key> get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return join(pending == null ? null : pending.get(timeout, unit));
+        }
+
+        private List<Key> join(final List<Key> pendingKeys) {
+            if (pendingKeys == null) {
+                return done;
+            }
+            final List<Key> result = new ArrayList<>(pendingKeys);
+            result.addAll(done);
+
+            return result;
+        }
+    }
+
+
     public static final class ValuesContainer implements Serializable {
 
         private static final long serialVersionUID = 472142124257311224L;
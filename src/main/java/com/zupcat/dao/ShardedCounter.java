@@ -0,0 +1,164 @@
+package com.zupcat.dao;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.zupcat.cache.CachePolicy;
+import com.zupcat.cache.CacheStrategy;
+import com.zupcat.cache.MemCache;
+import com.zupcat.util.RandomUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counter for hot aggregates, like global game totals, that receive too many increments for a single entity. The value
+ * is spread over N shard entities and each increment updates a random one in a transaction, so writes are not limited
+ * by one entity group. Reads sum all the shards and keep the total on MemCache, which is updated by increments.
+ * <p>
+ * Deltas can also be deferred, adding them in memory and writing them as one increment at most every
+ * deferredFlushMillis. Deferred deltas are lost if the instance goes down before the flush, so keep one instance per
+ * counter name (ie: a static field) and call flush at the end of the request when that matters.
+ * <p>
+ * The shards count can be raised later but not lowered, as the values of the dropped shards would be ignored
+ */
+public final class ShardedCounter {
+
+    public static final String ENTITY_NAME = "_ShardedCounter";
+    public static final String COUNT_PROPERTY = "count";
+
+    // the cached total could miss an increment done while it was being summed, so it is not kept for long
+    private static final int TOTAL_CACHE_SECS = 60;
+    private static final String CACHE_PREFIX = "ShardedCounterTotal_";
+    private static final RetryingHandler RETRYING_HANDLER = new RetryingHandler();
+
+    private final String name;
+    private final int shardsCount;
+    private final CachePolicy cachePolicy;
+    private final AtomicLong deferredDelta = new AtomicLong();
+    private volatile long deferredFlushMillis = 1000;
+    private volatile long lastFlush = System.currentTimeMillis();
+
+
+    public ShardedCounter(final String name, final int shardsCount) {
+        this(name, shardsCount, CacheStrategy.APPLICATION_CACHE);
+    }
+
+    public ShardedCounter(final String name, final int shardsCount, final CacheStrategy cacheStrategy) {
+        this(name, shardsCount, cacheStrategy.getPolicy());
+    }
+
+    public ShardedCounter(final String name, final int shardsCount, final CachePolicy cachePolicy) {
+        if (shardsCount < 1) {
+            throw new RuntimeException("ShardedCounter [" + name + "] needs at least one shard");
+        }
+        this.name = name;
+        this.shardsCount = shardsCount;
+        this.cachePolicy = cachePolicy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getShardsCount() {
+        return shardsCount;
+    }
+
+    public void setDeferredFlushMillis(final long deferredFlushMillis) {
+        this.deferredFlushMillis = deferredFlushMillis;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Writes the delta on a random shard
+     */
+    public void add(final long delta) {
+        if (delta == 0) {
+            return;
+        }
+        final Key shardKey = buildShardKey(RandomUtils.getInstance().getRandomInt(shardsCount));
+
+        RETRYING_HANDLER.tryDSIncrement(shardKey, COUNT_PROPERTY, delta);
+
+        getCache().incrementIfPresent(getCacheKey(), delta);
+    }
+
+    /**
+     * Adds the delta in memory. It is written with the other deferred deltas by flush, which is done here if
+     * deferredFlushMillis passed since the last one
+     */
+    public void addDeferred(final long delta) {
+        deferredDelta.addAndGet(delta);
+
+        if (System.currentTimeMillis() - lastFlush >= deferredFlushMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the deferred deltas as one increment. If it fails, the deltas are kept for the next flush
+     */
+    public void flush() {
+        lastFlush = System.currentTimeMillis();
+
+        final long delta = deferredDelta.getAndSet(0);
+
+        try {
+            add(delta);
+        } catch (final RuntimeException _exception) {
+            deferredDelta.addAndGet(delta);
+            throw _exception;
+        }
+    }
+
+    /**
+     * @return the sum of the shards. Deferred deltas not flushed yet are not included
+     */
+    public long get() {
+        final MemCache cache = getCache();
+        final String cacheKey = getCacheKey();
+        final Object cached = cache.get(cacheKey);
+
+        if (cached instanceof Long) {
+            return (Long) cached;
+        }
+
+        final List<Key> keys = new ArrayList<>(shardsCount);
+
+        for (int i = 0; i < shardsCount; i++) {
+            keys.add(buildShardKey(i));
+        }
+
+        long total = 0;
+
+        for (final Entity shard : RETRYING_HANDLER.tryDSGetMultiple(keys).values()) {
+            final Long count = (Long) shard.getProperty(COUNT_PROPERTY);
+
+            if (count != null) {
+                total += count;
+            }
+        }
+
+        // if another read cached the total meanwhile, it could already include newer increments
+        cache.addIfNotPresent(cacheKey, total, TOTAL_CACHE_SECS);
+
+        return total;
+    }
+
+    private Key buildShardKey(final int shard) {
+        return KeyFactory.createKey(ENTITY_NAME, name + "_" + shard);
+    }
+
+    private String getCacheKey() {
+        return CACHE_PREFIX + name;
+    }
+
+    private MemCache getCache() {
+        return cachePolicy.get();
+    }
+}
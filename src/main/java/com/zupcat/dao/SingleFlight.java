@@ -0,0 +1,49 @@
+package com.zupcat.dao;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent loads of the same key inside this instance. The first thread that asks for a key runs the
+ * loader, and the threads that ask for the same key while it is running wait for its result instead of running the
+ * loader again. Nothing is kept once the load finishes, so this is not a cache
+ */
+final class SingleFlight<V> {
+
+    private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+
+
+    public V load(final String key, final Callable<V> loader) {
+        final FutureTask<V> task = new FutureTask<>(loader);
+        final FutureTask<V> running = inFlight.putIfAbsent(key, task);
+
+        if (running != null) {
+            return getResult(running);
+        }
+
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return getResult(task);
+    }
+
+    private V getResult(final FutureTask<V> task) {
+        try {
+            return task.get();
+        } catch (final ExecutionException _exception) {
+            final Throwable cause = _exception.getCause();
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (final InterruptedException _exception) {
+            throw new RuntimeException(_exception);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.zupcat.dao;
+
+import com.google.appengine.api.datastore.Entity;
+
+import java.util.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Request scoped buffer for updateOrPersistAsync. Keeps the latest entity written for each key and, when flushed,
+ * puts them with Datastore batch calls on a background thread. Entities are built when they are added, so the objects
+ * can be changed by the request while a flush is running
+ */
+final class WriteBehindBuffer {
+
+    static final int MAX_PENDING_WRITES = 500;
+
+    private static final Logger log = Logger.getLogger(WriteBehindBuffer.class.getName());
+
+    private final ThreadFactory threadFactory;
+    private final Map<String, PendingWrite> pending = new LinkedHashMap<>();
+    private final List<WriteCompletion> completions = new ArrayList<>();
+
+
+    WriteBehindBuffer(final ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * @return the handle of the write, done when a flush writes this object or a later version of it
+     */
+    synchronized WriteCompletion add(final DAO<?> dao, final String cacheKey, final Entity entity) {
+        final PendingWrite write = new PendingWrite(dao, cacheKey, entity);
+        final PendingWrite replaced = pending.remove(cacheKey);
+
+        if (replaced != null) {
+            write.completions.addAll(replaced.completions);
+        }
+        pending.put(cacheKey, write);
+
+        final WriteCompletion result = write.completions.get(write.completions.size() - 1);
+
+        if (pending.size() >= MAX_PENDING_WRITES) {
+            flush();
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the pending write of the key, if any. Used when the object is written or removed synchronously, so the
+     * handles of the forgotten write are done
+     */
+    synchronized void discard(final String cacheKey) {
+        final PendingWrite discarded = pending.remove(cacheKey);
+
+        if (discarded != null) {
+            discarded.complete();
+        }
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Starts writing the pending objects on a background thread
+     *
+     * @return the handle of this flush, already done if there was nothing to write
+     */
+    synchronized WriteCompletion flush() {
+        final WriteCompletion completion = new WriteCompletion();
+
+        if (pending.isEmpty()) {
+            completion.complete();
+            return completion;
+        }
+
+        final List<PendingWrite> writes = new ArrayList<>(pending.values());
+        pending.clear();
+        completions.add(completion);
+
+        threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(writes, completion);
+                } finally {
+                    // writes not handled because of unexpected problems shouldn't be waited forever
+                    for (final PendingWrite write : writes) {
+                        write.complete();
+                    }
+                    completion.complete();
+                }
+            }
+        }).start();
+
+        return completion;
+    }
+
+    /**
+     * Flushes the pending objects and waits for every flush done by this buffer
+     *
+     * @return a handle with the problems of all the flushes
+     */
+    WriteCompletion flushAndWait() {
+        final List<WriteCompletion> all;
+
+        synchronized (this) {
+            flush();
+            all = new ArrayList<>(completions);
+            completions.clear();
+        }
+
+        final WriteCompletion result = WriteCompletion.all(all);
+        result.waitForAll();
+
+        return result;
+    }
+
+    private void write(final List<PendingWrite> writes, final WriteCompletion completion) {
+        final List<PendingWrite> chunk = new ArrayList<>(DAO.MAX_PUT_ENTITIES);
+        final List<Entity> entities = new ArrayList<>(DAO.MAX_PUT_ENTITIES);
+        int chunkBytes = 0;
+        int chunkEntities = 0;
+
+        for (final PendingWrite write : writes) {
+            final Entity entity = write.entity;
+            final int entityBytes = DAO.estimateEntityBytes(entity);
+            final int putEntities = DAO.countPutEntities(entity);
+
+            if (!entities.isEmpty() && (chunkEntities + putEntities > DAO.MAX_PUT_ENTITIES || chunkBytes + entityBytes > DAO.MAX_PUT_BYTES)) {
+                putChunk(chunk, entities, completion);
+                chunk.clear();
+                entities.clear();
+                chunkBytes = 0;
+                chunkEntities = 0;
+            }
+            chunk.add(write);
+            entities.add(entity);
+            chunkBytes += entityBytes;
+            chunkEntities += putEntities;
+        }
+
+        if (!entities.isEmpty()) {
+            putChunk(chunk, entities, completion);
+        }
+    }
+
+    private void putChunk(final List<PendingWrite> chunk, final List<Entity> entities, final WriteCompletion completion) {
+        try {
+            chunk.get(0).dao.getRetryingHandler().tryDSPutMultiple(entities);
+        } catch (final Throwable _exception) {
+            log.log(Level.SEVERE, "Problems when writing " + entities.size() + " entities: " + _exception.getMessage(), _exception);
+            completion.fail(_exception);
+
+            for (final PendingWrite write : chunk) {
+                write.fail(_exception);
+            }
+            return;
+        }
+
+        final Map<DAO<?>, List<Entity>> written = new HashMap<>();
+
+        for (int i = 0; i < chunk.size(); i++) {
+            final DAO<?> dao = chunk.get(i).dao;
+            List<Entity> daoEntities = written.get(dao);
+
+            if (daoEntities == null) {
+                daoEntities = new ArrayList<>();
+                written.put(dao, daoEntities);
+            }
+            daoEntities.add(entities.get(i));
+        }
+
+        for (final Map.Entry<DAO<?>, List<Entity>> entry : written.entrySet()) {
+            entry.getKey().putWrittenInCache(entry.getValue());
+            entry.getKey().invalidateCachedQueries();
+        }
+
+        for (final PendingWrite write : chunk) {
+            write.complete();
+        }
+    }
+
+
+    private static final class PendingWrite {
+
+        private final DAO<?> dao;
+        private final String cacheKey;
+        private final Entity entity;
+        // handles of this write and of the replaced writes of the same key
+        private final List<WriteCompletion> completions = new ArrayList<>(1);
+
+        private PendingWrite(final DAO<?> dao, final String cacheKey, final Entity entity) {
+            this.dao = dao;
+            this.cacheKey = cacheKey;
+            this.entity = entity;
+
+            completions.add(new WriteCompletion());
+        }
+
+        private void fail(final Throwable problems) {
+            for (final WriteCompletion completion : completions) {
+                completion.fail(problems);
+                completion.complete();
+            }
+        }
+
+        private void complete() {
+            for (final WriteCompletion completion : completions) {
+                completion.complete();
+            }
+        }
+    }
+}
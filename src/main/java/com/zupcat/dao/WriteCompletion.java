@@ -0,0 +1,198 @@
+package com.zupcat.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Handle of writes that are done in the background. It is done when all of them finished, and keeps the problems
+ * found so they can be checked by the caller. Handles can be joined with all or and, to wait for several writes as one
+ */
+public final class WriteCompletion {
+
+    private final CountDownLatch pending;
+    private final List<Future<?>> futures = new ArrayList<>();
+    private final List<WriteCompletion> parts = new ArrayList<>();
+    private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    private final List<Runnable> callbacks = new ArrayList<>();
+
+
+    WriteCompletion() {
+        this(1);
+    }
+
+    WriteCompletion(final int parts) {
+        pending = new CountDownLatch(parts);
+    }
+
+    /**
+     * Handle of a Datastore async call. Its problems are found when the future is resolved
+     */
+    WriteCompletion(final Future<?> future) {
+        this(0);
+        futures.add(future);
+    }
+
+    /**
+     * @return a handle that is already done, without problems
+     */
+    public static WriteCompletion done() {
+        return new WriteCompletion(0);
+    }
+
+    /**
+     * @return a handle that is done when all the given ones are done, with all their problems
+     */
+    public static WriteCompletion all(final Collection<WriteCompletion> completions) {
+        final WriteCompletion result = new WriteCompletion(0);
+        result.parts.addAll(completions);
+
+        return result;
+    }
+
+    public WriteCompletion and(final WriteCompletion other) {
+        final List<WriteCompletion> completions = new ArrayList<>(2);
+        completions.add(this);
+        completions.add(other);
+
+        return all(completions);
+    }
+
+    /**
+     * Runs the callback once the futures of this handle are resolved without problems, on the thread that resolves
+     * them: the one waiting for the handle, checking if it is done or checking its failures. Callbacks of failed writes
+     * are dropped
+     */
+    void whenWritten(final Runnable callback) {
+        synchronized (futures) {
+            callbacks.add(callback);
+        }
+        resolveFutures(false);
+    }
+
+    void fail(final Throwable throwable) {
+        failures.add(throwable);
+    }
+
+    void complete() {
+        pending.countDown();
+    }
+
+    public boolean isDone() {
+        if (pending.getCount() > 0) {
+            return false;
+        }
+
+        // finished futures are resolved, running the callbacks when all of them are done
+        resolveFutures(false);
+
+        synchronized (futures) {
+            if (!futures.isEmpty()) {
+                return false;
+            }
+        }
+
+        for (final WriteCompletion part : parts) {
+            if (!part.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the problems found so far. Empty if the writes were ok
+     */
+    public List<Throwable> getFailures() {
+        resolveFutures(false);
+
+        final List<Throwable> result;
+
+        synchronized (failures) {
+            result = new ArrayList<>(failures);
+        }
+
+        for (final WriteCompletion part : parts) {
+            result.addAll(part.getFailures());
+        }
+        return result;
+    }
+
+    /**
+     * Waits for the writes to finish, throwing a RuntimeException if any of them failed
+     */
+    public void await() {
+        waitForAll();
+
+        final List<Throwable> problems = getFailures();
+
+        if (!problems.isEmpty()) {
+            final RuntimeException exception = new RuntimeException(problems.size() + " problems found when writing. First one: " + problems.get(0).getMessage(), problems.get(0));
+
+            for (int i = 1; i < problems.size(); i++) {
+                exception.addSuppressed(problems.get(i));
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Waits for the writes to finish, without throwing their problems
+     */
+    void waitForAll() {
+        try {
+            pending.await();
+        } catch (final InterruptedException _exception) {
+            throw new RuntimeException("Interrupted while waiting for writes: " + _exception.getMessage(), _exception);
+        }
+
+        resolveFutures(true);
+
+        for (final WriteCompletion part : parts) {
+            part.waitForAll();
+        }
+    }
+
+    /**
+     * Moves the problems of the finished futures to the failures list, running the callbacks when all of them are done
+     *
+     * @param wait true to wait for the futures still running
+     */
+    private void resolveFutures(final boolean wait) {
+        final List<Runnable> toRun;
+
+        synchronized (futures) {
+            for (final Iterator<Future<?>> iterator = futures.iterator(); iterator.hasNext(); ) {
+                final Future<?> future = iterator.next();
+
+                if (!wait && !future.isDone()) {
+                    continue;
+                }
+
+                try {
+                    future.get();
+                } catch (final ExecutionException _exception) {
+                    fail(_exception.getCause() == null ? _exception : _exception.getCause());
+                } catch (final InterruptedException _exception) {
+                    throw new RuntimeException("Interrupted while waiting for writes: " + _exception.getMessage(), _exception);
+                }
+                iterator.remove();
+            }
+
+            if (!futures.isEmpty() || callbacks.isEmpty()) {
+                return;
+            }
+            toRun = failures.isEmpty() ? new ArrayList<>(callbacks) : Collections.<Runnable>emptyList();
+            callbacks.clear();
+        }
+
+        for (final Runnable callback : toRun) {
+            callback.run();
+        }
+    }
+}
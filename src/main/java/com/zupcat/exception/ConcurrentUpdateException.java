@@ -0,0 +1,15 @@
+package com.zupcat.exception;
+
+import java.io.Serializable;
+
+/**
+ * Thrown when an optimistic update could not be done because other writers kept changing the same entities
+ */
+public final class ConcurrentUpdateException extends RuntimeException implements Serializable {
+
+    private static final long serialVersionUID = -3152648761203942215L;
+
+    public ConcurrentUpdateException(final String message) {
+        super(message);
+    }
+}
@@ -1,5 +1,6 @@
 package com.zupcat.model;
 
+import com.zupcat.cache.CachePolicy;
 import com.zupcat.cache.CacheStrategy;
 import com.zupcat.model.config.INT;
 import com.zupcat.model.config.LONG;
@@ -23,30 +24,49 @@ public abstract class DatastoreEntity extends PersistentObject implements Serial
 
     public static final int MAX_GROUPS = 100;
     private static final long serialVersionUID = 6181606486836703354L;
+    private static final DataObjectSerializer<DataObject> BINARY_DATA_SERIALIZER = new DataObjectSerializer<>();
     // persistent state
     private final DataObject dataObject = new DataObject();
+    // compressed data not decoded yet (lazy materialization)
+    private byte[] pendingBinaryData;
+    // loaded by a projection query, so only the projected properties are filled
+    private boolean partial = false;
+    // changed since it was loaded or persisted. New objects are always dirty
+    private boolean dirty = true;
+    // a value that can be changed in place was handed out, so the binary data is compared before the next write
+    private boolean possiblyChanged = false;
+    // incremented on every change that is not only on indexed values
+    private long binaryDataVersion = 0;
+    // compressed data as it was loaded or last encoded, valid while binaryDataVersion is the encoded one
+    private transient byte[] encodedBinaryData;
+    private transient long encodedBinaryDataVersion;
+    private transient int storedBlobChunks;
 
     private final String entityName;
     private final Map<String, PropertyMeta> propertiesMetadata = new HashMap<>();
     // entity usefull properties
     public IntegerProperty GROUP_ID;
     public LongProperty LAST_MODIFICATION;
-    private CacheStrategy cacheStrategy;
+    private CachePolicy cachePolicy;
 
 
     protected DatastoreEntity() {
         final Class<? extends DatastoreEntity> clazz = this.getClass();
         final String className = clazz.getName();
         entityName = className.substring(className.lastIndexOf(".") + 1);
-        this.cacheStrategy = CacheStrategy.NO_CACHE;
+        this.cachePolicy = CacheStrategy.NO_CACHE.getPolicy();
 
         setNewId();
     }
 
     protected DatastoreEntity(final CacheStrategy cacheStrategy) {
+        this(cacheStrategy.getPolicy());
+    }
+
+    protected DatastoreEntity(final CachePolicy cachePolicy) {
         this();
 
-        this.cacheStrategy = cacheStrategy;
+        this.cachePolicy = cachePolicy;
         GROUP_ID = new INT(this).indexable().build();
         LAST_MODIFICATION = new LONG(this).sendToClient().mandatory().indexable().build();
 
@@ -97,7 +117,7 @@ public abstract class DatastoreEntity extends PersistentObject implements Serial
         if (
                 other == null ||
                         !Objects.equals(this.getId(), other.getId()) ||
-                        !Objects.equals(this.cacheStrategy, other.cacheStrategy) ||
+                        !Objects.equals(this.cachePolicy, other.cachePolicy) ||
                         !Objects.equals(this.entityName, other.entityName) ||
                         !Objects.equals(this.GROUP_ID.get(), other.GROUP_ID.get()) ||
                         !Objects.equals(this.LAST_MODIFICATION.get(), other.LAST_MODIFICATION.get()) ||
@@ -174,12 +194,13 @@ public abstract class DatastoreEntity extends PersistentObject implements Serial
 
     @Override
     public String getId() {
-        return getDataObject().optString(WithIdDataObject.ID_KEY, null);
+        return getLoadedDataObject().optString(WithIdDataObject.ID_KEY, null);
     }
 
     @Override
     public void setId(final String id) {
-        getDataObject().put(WithIdDataObject.ID_KEY, id);
+        getLoadedDataObject().put(WithIdDataObject.ID_KEY, id);
+        dirty = true;
     }
 
     public Map<String, PropertyMeta> getPropertiesMetadata() {
@@ -193,12 +214,162 @@ public abstract class DatastoreEntity extends PersistentObject implements Serial
         propertiesMetadata.put(name, propertyMeta);
     }
 
+    /**
+     * Changes done straight on the returned DataObject are not tracked. Call markAsDirty after them, otherwise
+     * DAO.updateOrPersist could skip the write
+     */
     public DataObject getDataObject() {
+        if (pendingBinaryData != null) {
+            decodePendingBinaryData();
+        }
         return dataObject;
     }
 
-    public CacheStrategy getCacheStrategy() {
-        return cacheStrategy;
+    /**
+     * @return the DataObject without decoding pending binary data. Only the id and indexed properties are reliable on it
+     */
+    public DataObject getLoadedDataObject() {
+        return dataObject;
+    }
+
+    /**
+     * Keeps the compressed data as it was loaded. It will be decoded when the DataObject is first accessed
+     */
+    public void setPendingBinaryData(final byte[] binaryData) {
+        this.pendingBinaryData = binaryData;
+
+        setEncodedBinaryData(binaryData, binaryDataVersion);
+    }
+
+    public long getBinaryDataVersion() {
+        return binaryDataVersion;
+    }
+
+    /**
+     * Keeps the compressed data so it can be reused on next writes
+     *
+     * @param version the binaryDataVersion the data was encoded from
+     */
+    public void setEncodedBinaryData(final byte[] binaryData, final long version) {
+        this.encodedBinaryData = binaryData;
+        this.encodedBinaryDataVersion = version;
+    }
+
+    /**
+     * @return the compressed data as it was loaded or last encoded, or null if it changed since then
+     */
+    public byte[] getReusableBinaryData() {
+        checkPossibleChanges();
+
+        return encodedBinaryData != null && encodedBinaryDataVersion == binaryDataVersion ? encodedBinaryData : null;
+    }
+
+    /**
+     * @return the amount of blob chunk entities of the binary data as it was loaded or last written
+     */
+    public int getStoredBlobChunks() {
+        return storedBlobChunks;
+    }
+
+    public void setStoredBlobChunks(final int storedBlobChunks) {
+        this.storedBlobChunks = storedBlobChunks;
+    }
+
+    public boolean hasPendingBinaryData() {
+        return pendingBinaryData != null;
+    }
+
+    /**
+     * Properties mark their owner as dirty when they are changed. Code that changes the DataObject directly should call
+     * this, otherwise DAO.updateOrPersist could skip the write
+     */
+    public void markAsDirty() {
+        this.dirty = true;
+        this.binaryDataVersion++;
+    }
+
+    /**
+     * Properties call this when they hand out a value that can be changed in place, like a list, a map or a DataObject.
+     * The DataObject is compared with the encoded binary data before the next write, so objects that were only read are
+     * not written again
+     */
+    public void markAsPossiblyChanged() {
+        this.possiblyChanged = true;
+    }
+
+    /**
+     * Indexed values are written as Entity properties and they have precedence over the binary data ones when loading,
+     * so changing them keeps the encoded binary data valid
+     */
+    public void markIndexedPropertyAsDirty() {
+        this.dirty = true;
+    }
+
+    public void markAsClean() {
+        this.dirty = false;
+        this.possiblyChanged = false;
+    }
+
+    public boolean isDirty() {
+        checkPossibleChanges();
+
+        return dirty;
+    }
+
+    public void markAsPartial() {
+        this.partial = true;
+    }
+
+    /**
+     * @return true if this object was loaded by a projection query. Partial objects are read only
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    private void checkPossibleChanges() {
+        if (!possiblyChanged) {
+            return;
+        }
+        possiblyChanged = false;
+
+        if (encodedBinaryData == null || encodedBinaryDataVersion != binaryDataVersion) {
+            // already changed, or there is nothing to compare with
+            markAsDirty();
+            return;
+        }
+
+        final byte[] binaryData = BINARY_DATA_SERIALIZER.serialize(dataObject, true);
+
+        if (!Arrays.equals(binaryData, encodedBinaryData)) {
+            markAsDirty();
+
+            // so the write doesn't encode it again
+            setEncodedBinaryData(binaryData, binaryDataVersion);
+        }
+    }
+
+    private void decodePendingBinaryData() {
+        final byte[] binaryData = pendingBinaryData;
+        pendingBinaryData = null;
+
+        // id and indexed values could be changed after loading, so they have precedence over the decoded ones
+        final DataObject loaded = new DataObject();
+        loaded.mergeWith(dataObject);
+
+        BINARY_DATA_SERIALIZER.deserialize(binaryData, dataObject, true);
+
+        dataObject.mergeWith(loaded);
+
+        for (final PropertyMeta propertyMeta : propertiesMetadata.values()) {
+            if (propertyMeta.isIndexable() && !loaded.has(propertyMeta.getPropertyName())) {
+                dataObject.remove(propertyMeta.getPropertyName());
+            }
+        }
+    }
+
+    public CachePolicy getCachePolicy() {
+        return cachePolicy;
     }
 
     @Override
@@ -239,6 +410,7 @@ public abstract class DatastoreEntity extends PersistentObject implements Serial
 
     protected void setDataObjectType(final String type) {
         getDataObject().put("_t", type);
+        markAsDirty();
     }
 
     public Date getLastModificationAsDate() {
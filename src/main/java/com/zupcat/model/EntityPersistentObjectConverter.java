@@ -2,13 +2,24 @@ package com.zupcat.model;
 
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.RawValue;
 import com.zupcat.dao.DAO;
+import com.zupcat.dao.RetryingHandler;
 import com.zupcat.model.config.PropertyMeta;
 import com.zupcat.property.IntegerProperty;
 import com.zupcat.service.SimpleDatastoreServiceFactory;
 import org.apache.commons.io.IOUtils;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Helper that converts Datastore Entities to Java Objects
@@ -16,6 +27,12 @@ import java.io.*;
 public final class EntityPersistentObjectConverter<P extends DatastoreEntity> {
 
     public static final String DATA_CONTAINER_PROPERTY = "bdata";
+    // binary data bigger than one chunk is split, keeping the first chunk in the entity and the rest in child entities
+    public static final String BLOB_CHUNKS_PROPERTY = "bdata_chunks";
+    public static final String BLOB_CHUNK_ENTITY_NAME = "_BlobChunk";
+    public static final int BLOB_CHUNK_BYTES = 1000000;
+    // the entity and its chunks are written in one transaction, and Datastore commits up to 10 MiB in each one
+    public static final int MAX_BLOB_CHUNKS = 9;
     private static final Object LOCK_OBJECT = new Object();
     private static EntityPersistentObjectConverter _instance;
     private final DataObjectSerializer<DataObject> objectHolderSerializer;
@@ -128,15 +145,32 @@ public final class EntityPersistentObjectConverter<P extends DatastoreEntity> {
             return null;
         }
 
+        if (persistentObject.isPartial()) {
+            throw new RuntimeException("Object [" + persistentObject.getEntityName() + "|" + persistentObject.getId() + "] was loaded by a projection query and it is read only");
+        }
+
         final Entity anEntity = new Entity(dao.getEntityName(), persistentObject.getId());
 
-        final byte[] binaryData = objectHolderSerializer.serialize(persistentObject.getDataObject(), true);
+        byte[] binaryData = persistentObject.getReusableBinaryData();
+
+        if (binaryData == null) {
+            final long binaryDataVersion = persistentObject.getBinaryDataVersion();
 
-        if (binaryData.length > 1000000) {
-            throw new RuntimeException("BinaryData length for object [" + persistentObject + "] is bigger than permitted: " + binaryData.length);
+            binaryData = objectHolderSerializer.serialize(persistentObject.getDataObject(), true);
+
+            if (binaryData.length > BLOB_CHUNK_BYTES * MAX_BLOB_CHUNKS) {
+                throw new RuntimeException("BinaryData length for object [" + persistentObject + "] is bigger than permitted: " + binaryData.length);
+            }
+            persistentObject.setEncodedBinaryData(binaryData, binaryDataVersion);
         }
 
-        anEntity.setUnindexedProperty(DATA_CONTAINER_PROPERTY, new Blob(binaryData));
+        setBinaryData(anEntity, binaryData);
+
+        if (!anEntity.hasProperty(BLOB_CHUNKS_PROPERTY) && persistentObject.getStoredBlobChunks() > 0) {
+            // so the chunks of the stored version are deleted by the write
+            anEntity.setUnindexedProperty(BLOB_CHUNKS_PROPERTY, 0L);
+        }
+        persistentObject.setStoredBlobChunks(countBlobChunks(anEntity));
 
         for (final PropertyMeta propertyMeta : persistentObject.getPropertiesMetadata().values()) {
             if (propertyMeta.isIndexable()) {
@@ -154,15 +188,24 @@ public final class EntityPersistentObjectConverter<P extends DatastoreEntity> {
 
             result.setId(entity.getKey().getName());
 
-            final Blob binaryData = (Blob) entity.getProperty(DATA_CONTAINER_PROPERTY);
+            final Entity stored = withBlobChunks(Collections.singletonList(entity), dao.getRetryingHandler()).get(entity.getKey());
+            final byte[] binaryData = getBinaryData(stored);
+
+            result.setStoredBlobChunks(countBlobChunks(stored));
 
             if (binaryData != null) {
-                objectHolderSerializer.deserialize(binaryData.getBytes(), result.getDataObject(), true);
+                if (dao.isLazyMaterialization()) {
+                    result.setPendingBinaryData(binaryData);
+                } else {
+                    objectHolderSerializer.deserialize(binaryData, result.getDataObject(), true);
+                    result.setEncodedBinaryData(binaryData, result.getBinaryDataVersion());
+                }
             }
 
             for (final PropertyMeta propertyMeta : result.getPropertiesMetadata().values()) {
                 if (propertyMeta.isIndexable()) {
-                    final Serializable propertyValue = (Serializable) entity.getProperty(propertyMeta.getPropertyName());
+                    final Object rawPropertyValue = stored.getProperty(propertyMeta.getPropertyName());
+                    final Serializable propertyValue = (Serializable) (rawPropertyValue instanceof RawValue ? ((RawValue) rawPropertyValue).getValue() : rawPropertyValue);
 
                     if (propertyValue != null && propertyValue.getClass().getName().equals(Long.class.getName()) && propertyMeta.getClass().getName().equals(IntegerProperty.class.getName())) {
                         final Long longValue = (Long) propertyValue;
@@ -177,6 +220,177 @@ public final class EntityPersistentObjectConverter<P extends DatastoreEntity> {
                     }
                 }
             }
+            result.markAsClean();
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the first chunk of the binary data in the entity and the others as in-memory properties, expanded to
+     * child entities by expandBlobChunks when writing
+     */
+    private static void setBinaryData(final Entity entity, final byte[] binaryData) {
+        if (binaryData.length <= BLOB_CHUNK_BYTES) {
+            entity.setUnindexedProperty(DATA_CONTAINER_PROPERTY, new Blob(binaryData));
+            return;
+        }
+
+        final int chunks = (binaryData.length + BLOB_CHUNK_BYTES - 1) / BLOB_CHUNK_BYTES;
+
+        entity.setUnindexedProperty(DATA_CONTAINER_PROPERTY, new Blob(Arrays.copyOfRange(binaryData, 0, BLOB_CHUNK_BYTES)));
+        entity.setUnindexedProperty(BLOB_CHUNKS_PROPERTY, (long) (chunks - 1));
+
+        for (int i = 1; i < chunks; i++) {
+            final byte[] chunk = Arrays.copyOfRange(binaryData, i * BLOB_CHUNK_BYTES, Math.min(binaryData.length, (i + 1) * BLOB_CHUNK_BYTES));
+
+            entity.setUnindexedProperty(getChunkPropertyName(i), new Blob(chunk));
+        }
+    }
+
+    /**
+     * Joins the chunks of the binary data, which must be in memory
+     */
+    private static byte[] getBinaryData(final Entity entity) {
+        final Blob first = (Blob) entity.getProperty(DATA_CONTAINER_PROPERTY);
+        final int chunks = countBlobChunks(entity);
+
+        if (first == null || chunks == 0) {
+            return first == null ? null : first.getBytes();
+        }
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(BLOB_CHUNK_BYTES * (chunks + 1));
+        outputStream.write(first.getBytes(), 0, first.getBytes().length);
+
+        for (int i = 1; i <= chunks; i++) {
+            final Blob chunk = (Blob) entity.getProperty(getChunkPropertyName(i));
+
+            if (chunk == null) {
+                throw new RuntimeException("Chunk " + i + " of " + chunks + " of the binary data of entity [" + entity.getKey() + "] was not found");
+            }
+            outputStream.write(chunk.getBytes(), 0, chunk.getBytes().length);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Gets again the entities with split binary data whose chunks are not in memory, as happens with the ones read
+     * from the Datastore or the cache, with one transactional batch get for each DAO.MAX_TRANSACTION_GROUPS entities.
+     * The first chunk of a cached entity could be older than the stored chunks, so the stored entity replaces it: it is
+     * the same version or a newer one. Entities removed meanwhile are kept as they were given
+     *
+     * @return the entities by key, with the chunks in memory
+     */
+    public static Map<Key, Entity> withBlobChunks(final Collection<Entity> entities, final RetryingHandler retryingHandler) {
+        final Map<Key, Entity> result = new LinkedHashMap<>(entities.size());
+        final List<Key> toGet = new ArrayList<>();
+
+        for (final Entity entity : entities) {
+            result.put(entity.getKey(), entity);
+
+            if (countBlobChunks(entity) > 0 && !hasBlobChunksInMemory(entity)) {
+                toGet.add(entity.getKey());
+            }
+        }
+
+        for (int i = 0; i < toGet.size(); i += DAO.MAX_TRANSACTION_GROUPS) {
+            result.putAll(retryingHandler.tryDSGetWithBlobChunks(toGet.subList(i, Math.min(toGet.size(), i + DAO.MAX_TRANSACTION_GROUPS))));
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of the entity with its chunk entities as in-memory properties
+     */
+    public static Entity joinBlobChunks(final Entity entity, final Map<Key, Entity> chunkEntities) {
+        final int chunks = countBlobChunks(entity);
+
+        if (chunks == 0) {
+            return entity;
+        }
+
+        final Entity result = entity.clone();
+
+        for (int i = 1; i <= chunks; i++) {
+            final Entity chunkEntity = chunkEntities.get(KeyFactory.createKey(entity.getKey(), BLOB_CHUNK_ENTITY_NAME, Integer.toString(i)));
+
+            if (chunkEntity == null) {
+                throw new RuntimeException("Chunk " + i + " of " + chunks + " of the binary data of entity [" + entity.getKey() + "] was not found");
+            }
+            result.setUnindexedProperty(getChunkPropertyName(i), chunkEntity.getProperty(DATA_CONTAINER_PROPERTY));
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the binary data of the entity is split and its chunks are in memory, as happens with the entities
+     * about to be written
+     */
+    public static boolean hasBlobChunksInMemory(final Entity entity) {
+        return countBlobChunks(entity) > 0 && entity.hasProperty(getChunkPropertyName(1));
+    }
+
+    private static String getChunkPropertyName(final int chunk) {
+        return DATA_CONTAINER_PROPERTY + "_" + chunk;
+    }
+
+    /**
+     * @return the amount of child entities with the binary data of the entity
+     */
+    public static int countBlobChunks(final Entity entity) {
+        final Object chunks = entity.getProperty(BLOB_CHUNKS_PROPERTY);
+
+        return chunks == null ? 0 : ((Number) chunks).intValue();
+    }
+
+    public static List<Key> buildBlobChunkKeys(final Key parentKey, final int chunks) {
+        final List<Key> result = new ArrayList<>(chunks);
+
+        for (int i = 1; i <= chunks; i++) {
+            result.add(KeyFactory.createKey(parentKey, BLOB_CHUNK_ENTITY_NAME, Integer.toString(i)));
+        }
+        return result;
+    }
+
+    /**
+     * @return the entities to write to the Datastore, with the in-memory chunks of split binary data moved to child
+     * entities
+     */
+    public static List<Entity> expandBlobChunks(final Iterable<Entity> entities) {
+        final List<Entity> result = new ArrayList<>();
+
+        for (final Entity entity : entities) {
+            if (!hasBlobChunksInMemory(entity)) {
+                result.add(entity);
+                continue;
+            }
+            final int chunks = countBlobChunks(entity);
+
+            result.add(withoutBlobChunks(entity));
+
+            for (int i = 1; i <= chunks; i++) {
+                final Entity chunkEntity = new Entity(BLOB_CHUNK_ENTITY_NAME, Integer.toString(i), entity.getKey());
+                chunkEntity.setUnindexedProperty(DATA_CONTAINER_PROPERTY, entity.getProperty(getChunkPropertyName(i)));
+
+                result.add(chunkEntity);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the entity as it is stored, without the in-memory chunks of its binary data. Used for caching, as the
+     * whole entity could be bigger than MemCache values limit
+     */
+    public static Entity withoutBlobChunks(final Entity entity) {
+        if (!hasBlobChunksInMemory(entity)) {
+            return entity;
+        }
+
+        final int chunks = countBlobChunks(entity);
+        final Entity result = entity.clone();
+
+        for (int i = 1; i <= chunks; i++) {
+            result.removeProperty(getChunkPropertyName(i));
         }
         return result;
     }
@@ -39,6 +39,20 @@ public abstract class PropertyMeta<E> implements Serializable {
         return owner;
     }
 
+    /**
+     * Called by properties when their values are changed in place, so the owner is written on next updateOrPersist
+     */
+    protected void markOwnerAsDirty() {
+        owner.markAsDirty();
+    }
+
+    /**
+     * Called by properties when they hand out values that can be changed in place
+     */
+    protected void markOwnerAsPossiblyChanged() {
+        owner.markAsPossiblyChanged();
+    }
+
     public boolean isFullyEquals(final PropertyMeta other) {
         // skipping owner comparisson. It is not needed and causes stackoverflow
         return !(other == null ||
@@ -62,7 +76,7 @@ public abstract class PropertyMeta<E> implements Serializable {
     }
 
     public E get() {
-        final E result = getValueImpl(owner.getDataObject());
+        final E result = getValueImpl(getOwnerDataObject());
 
         return result == null ? options.initialValue : result;
     }
@@ -76,7 +90,13 @@ public abstract class PropertyMeta<E> implements Serializable {
             AuditHandlerServiceFactory.getAuditHandler().logPropertyDataChanged(this, value, owner.getId());
         }
 
-        final DataObject dataObject = owner.getDataObject();
+        final DataObject dataObject = getOwnerDataObject();
+
+        if (options.indexable) {
+            owner.markIndexedPropertyAsDirty();
+        } else {
+            owner.markAsDirty();
+        }
 
         if (value == null || value.equals(options.initialValue)) {
             dataObject.remove(name);
@@ -85,6 +105,11 @@ public abstract class PropertyMeta<E> implements Serializable {
         }
     }
 
+    private DataObject getOwnerDataObject() {
+        // indexed values are loaded straight from the Entity, so there is no need to decode the owner binary data
+        return options.indexable ? owner.getLoadedDataObject() : owner.getDataObject();
+    }
+
     public AbstractPropertyBuilder<? extends PropertyMeta<E>, E> getOptions() {
         return options;
     }
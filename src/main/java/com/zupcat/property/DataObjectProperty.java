@@ -22,6 +22,19 @@ public final class DataObjectProperty<T extends DataObject> extends PropertyMeta
         return itemClass;
     }
 
+    /**
+     * The returned object can be changed in place, so it is compared with the loaded one before the next write
+     */
+    @Override
+    public T get() {
+        final T result = super.get();
+
+        if (result != null) {
+            markOwnerAsPossiblyChanged();
+        }
+        return result;
+    }
+
     @Override
     protected T getValueImpl(final DataObject dataObject) {
         if (!dataObject.has(name)) {
@@ -27,6 +27,16 @@ public final class ListProperty<V> extends PropertyMeta<List<V>> implements Seri
         return itemClass;
     }
 
+    /**
+     * The returned list is the one kept by the owner, so it is compared with the loaded one before the next write
+     */
+    @Override
+    public List<V> get() {
+        markOwnerAsPossiblyChanged();
+
+        return super.get();
+    }
+
     @Override
     public void setFromStringValue(final String stringValue, final boolean forceAudit) {
 
@@ -94,6 +104,34 @@ public final class ListProperty<V> extends PropertyMeta<List<V>> implements Seri
     }
 
     private List<V> getList() {
+        final DataObject dataObject = getOwner().getDataObject();
+
+        // reading doesn't add an empty list to the owner, so it is not seen as changed
+        return dataObject.has(name) ? getValueImpl(dataObject) : Collections.<V>emptyList();
+    }
+
+    private List<V> getListForWriting() {
+        markOwnerAsDirty();
+
+        return getValueImpl(getOwner().getDataObject());
+    }
+
+    /**
+     * Items of DataObject lists can be changed in place, so reading them marks the owner as possibly changed
+     */
+    private List<V> getListForItemReading() {
+        if (itemClass != null) {
+            markOwnerAsPossiblyChanged();
+        }
+        return getList();
+    }
+
+    /**
+     * Views can be used to change the list, so the owner is marked as possibly changed
+     */
+    private List<V> getListForView() {
+        markOwnerAsPossiblyChanged();
+
         return getValueImpl(getOwner().getDataObject());
     }
 
@@ -116,7 +154,25 @@ public final class ListProperty<V> extends PropertyMeta<List<V>> implements Seri
 
     @Override
     public Iterator<V> iterator() {
-        return getList().iterator();
+        final Iterator<V> iterator = getListForItemReading().iterator();
+
+        return new Iterator<V>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public V next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                markOwnerAsDirty();
+                iterator.remove();
+            }
+        };
     }
 
     @Override
@@ -137,7 +193,7 @@ public final class ListProperty<V> extends PropertyMeta<List<V>> implements Seri
 
     @Override
     public V get(final int index) {
-        return getList().get(index);
+        return getListForItemReading().get(index);
     }
 
     @Override
@@ -152,72 +208,72 @@ public final class ListProperty<V> extends PropertyMeta<List<V>> implements Seri
 
     @Override
     public ListIterator<V> listIterator() {
-        return getList().listIterator();
+        return getListForView().listIterator();
     }
 
     @Override
     public ListIterator<V> listIterator(final int index) {
-        return getList().listIterator(index);
+        return getListForView().listIterator(index);
     }
 
     @Override
     public List<V> subList(final int fromIndex, final int toIndex) {
-        return getList().subList(fromIndex, toIndex);
+        return getListForView().subList(fromIndex, toIndex);
     }
 
 
     // Writing operations
     @Override
     public boolean add(final V v) {
-        return keepUniqueElements ? SetUniqueList.setUniqueList(getList()).add(v) : getList().add(v);
+        return keepUniqueElements ? SetUniqueList.setUniqueList(getListForWriting()).add(v) : getListForWriting().add(v);
     }
 
     @Override
     public boolean remove(final Object o) {
-        return getList().remove(o);
+        return getListForWriting().remove(o);
     }
 
     @Override
     public boolean addAll(final Collection<? extends V> c) {
-        return keepUniqueElements ? SetUniqueList.setUniqueList(getList()).addAll(c) : getList().addAll(c);
+        return keepUniqueElements ? SetUniqueList.setUniqueList(getListForWriting()).addAll(c) : getListForWriting().addAll(c);
     }
 
     @Override
     public boolean addAll(final int index, final Collection<? extends V> c) {
-        return keepUniqueElements ? SetUniqueList.setUniqueList(getList()).addAll(index, c) : getList().addAll(index, c);
+        return keepUniqueElements ? SetUniqueList.setUniqueList(getListForWriting()).addAll(index, c) : getListForWriting().addAll(index, c);
     }
 
     @Override
     public boolean removeAll(final Collection<?> c) {
-        return getList().removeAll(c);
+        return getListForWriting().removeAll(c);
     }
 
     @Override
     public boolean retainAll(final Collection<?> c) {
-        return keepUniqueElements ? SetUniqueList.setUniqueList(getList()).retainAll(c) : getList().retainAll(c);
+        return keepUniqueElements ? SetUniqueList.setUniqueList(getListForWriting()).retainAll(c) : getListForWriting().retainAll(c);
     }
 
     @Override
     public void clear() {
-        getList().clear();
+        getListForWriting().clear();
     }
 
     @Override
     public V set(final int index, final V element) {
-        return keepUniqueElements ? SetUniqueList.setUniqueList(getList()).set(index, element) : getList().set(index, element);
+        return keepUniqueElements ? SetUniqueList.setUniqueList(getListForWriting()).set(index, element) : getListForWriting().set(index, element);
     }
 
     @Override
     public void add(final int index, final V element) {
         if (keepUniqueElements) {
-            SetUniqueList.setUniqueList(getList()).add(index, element);
+            SetUniqueList.setUniqueList(getListForWriting()).add(index, element);
         } else {
-            getList().add(index, element);
+            getListForWriting().add(index, element);
         }
     }
 
     @Override
     public V remove(final int index) {
-        return getList().remove(index);
+        return getListForWriting().remove(index);
     }
 }
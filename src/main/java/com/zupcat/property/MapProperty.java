@@ -28,6 +28,16 @@ public final class MapProperty<V> extends PropertyMeta<Map<String, V>> implement
         return valueClass;
     }
 
+    /**
+     * The returned map is the one kept by the owner, so it is compared with the loaded one before the next write
+     */
+    @Override
+    public Map<String, V> get() {
+        markOwnerAsPossiblyChanged();
+
+        return super.get();
+    }
+
     @Override
     protected Map<String, V> getValueImpl(final DataObject dataObject) {
         final Map result = (Map) getMapImpl(dataObject);
@@ -85,6 +95,24 @@ public final class MapProperty<V> extends PropertyMeta<Map<String, V>> implement
 
 
     private Map<String, V> getMap() {
+        final DataObject dataObject = getOwner().getDataObject();
+
+        // reading doesn't add an empty map to the owner, so it is not seen as changed
+        return dataObject.has(name) ? getValueImpl(dataObject) : Collections.<String, V>emptyMap();
+    }
+
+    private Map<String, V> getMapForWriting() {
+        markOwnerAsDirty();
+
+        return getValueImpl(getOwner().getDataObject());
+    }
+
+    /**
+     * Views and DataObject values can be used to change the map, so the owner is marked as possibly changed
+     */
+    private Map<String, V> getMapForView() {
+        markOwnerAsPossiblyChanged();
+
         return getValueImpl(getOwner().getDataObject());
     }
 
@@ -132,36 +160,40 @@ public final class MapProperty<V> extends PropertyMeta<Map<String, V>> implement
     }
 
     public V get(final Object key) {
+        // DataObject values can be changed in place
+        if (valueClass != null) {
+            markOwnerAsPossiblyChanged();
+        }
         return getMap().get(key);
     }
 
     public Set<String> keySet() {
-        return getMap().keySet();
+        return getMapForView().keySet();
     }
 
     public Collection<V> values() {
-        return getMap().values();
+        return getMapForView().values();
     }
 
     public Set<Entry<String, V>> entrySet() {
-        return getMap().entrySet();
+        return getMapForView().entrySet();
     }
 
 
     // Modification Operations
     public V put(final String key, final V value) {
-        return getMap().put(key, value);
+        return getMapForWriting().put(key, value);
     }
 
     public V remove(final Object key) {
-        return getMap().remove(key);
+        return getMapForWriting().remove(key);
     }
 
     public void putAll(final Map<? extends String, ? extends V> m) {
-        getMap().putAll(m);
+        getMapForWriting().putAll(m);
     }
 
     public void clear() {
-        getMap().clear();
+        getMapForWriting().clear();
     }
 }
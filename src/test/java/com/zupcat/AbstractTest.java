@@ -1,7 +1,9 @@
 package com.zupcat;
 
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
 import com.zupcat.sample.Address;
 import com.zupcat.sample.User;
 import com.zupcat.sample.UserDAO;
@@ -16,14 +18,35 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 public abstract class AbstractTest {
 
     private static final Object LOCK_OBJECT = new Object();
-    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(), new LocalMemcacheServiceTestConfig());
     protected SimpleDatastoreService service;
     protected TestClass testClass;
 
+    /**
+     * Request thread factory is not available when testing, so the environment of the test thread is propagated by hand
+     */
+    protected static ThreadFactory buildTestThreadFactory() {
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ApiProxy.setEnvironmentForCurrentThread(environment);
+                        runnable.run();
+                    }
+                });
+            }
+        };
+    }
+
     protected static List<User> buildUsers() {
         final int samples = 100;
         final List<User> result = new ArrayList<>(samples);
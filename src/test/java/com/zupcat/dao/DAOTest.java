@@ -1,9 +1,23 @@
 package com.zupcat.dao;
 
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.zupcat.AbstractTest;
+import com.zupcat.cache.CachePolicy;
+import com.zupcat.cache.CacheStrategy;
+import com.zupcat.cache.LocalCache;
+import com.zupcat.cache.LocalMemCache;
+import com.zupcat.cache.MemCache;
+import com.zupcat.cache.NoMemCache;
+import com.zupcat.cache.TieredMemCache;
+import com.zupcat.cache.Tombstone;
+import com.zupcat.cache.WritePolicy;
 import com.zupcat.model.DatastoreEntity;
+import com.zupcat.model.EntityPersistentObjectConverter;
 import com.zupcat.model.PersistentObject;
+import com.zupcat.sample.Address;
 import com.zupcat.sample.User;
 import com.zupcat.sample.UserDAO;
 import com.zupcat.util.RandomUtils;
@@ -13,6 +27,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -141,6 +158,880 @@ public class DAOTest extends AbstractTest {
 
         final User next = userDAO.findUniqueIdMultiple(ids).values().iterator().next();
         assertEquals(user, next);
+
+        final FutureEntityMap<User> future = userDAO.findUniqueIdMultipleAsync(ids);
+        assertEquals(user, future.get().get(id));
+    }
+
+    @Test
+    public void testRequestScopeIdentityMap() {
+        final User user = userDAO.getByLastName("liendo").get(0);
+        final List<String> ids = new ArrayList<>();
+        ids.add(user.getId());
+
+        RequestScope.begin();
+
+        try {
+            final User first = userDAO.findById(user.getId());
+
+            assertSame(first, userDAO.findById(user.getId()));
+            assertSame(first, userDAO.findByIdAsync(user.getId()).get());
+            assertSame(first, userDAO.findUniqueIdMultiple(ids).get(user.getId()));
+
+            userDAO.remove(user.getId());
+
+            assertNull(userDAO.findById(user.getId()));
+        } finally {
+            RequestScope.end();
+        }
+
+        assertNull(RequestScope.current());
+    }
+
+    @Test
+    public void testFindUniqueIdMultipleThroughCache() {
+        final List<User> users = buildUsers();
+        final List<String> ids = new ArrayList<>(users.size());
+
+        for (final User user : users) {
+            ids.add(user.getId());
+        }
+
+        userDAO.massiveUpload(users);
+
+        // first call fills the cache from the Datastore
+        assertEquals(users.size(), userDAO.findUniqueIdMultiple(ids).size());
+        RetryingHandler.sleep(500);
+
+        final List<String> cacheKeys = new ArrayList<>(ids.size());
+
+        for (final String id : ids) {
+            cacheKeys.add(userDAO.getEntityName() + id);
+        }
+        assertEquals(users.size(), userDAO.getReadonlySample().getCachePolicy().get().getAll(cacheKeys).size());
+
+        final Map<String, User> cached = userDAO.findUniqueIdMultiple(ids);
+        assertEquals(users.size(), cached.size());
+
+        for (final User user : users) {
+            assertTrue(user.isFullyEquals(cached.get(user.getId())));
+        }
+
+        final FutureEntityMap<User> futureCached = userDAO.findUniqueIdMultipleAsync(ids);
+        assertTrue(futureCached.isDone());
+        assertEquals(users.size(), futureCached.get().size());
+
+        userDAO.remove(ids);
+        RetryingHandler.sleep(500);
+
+        assertTrue(userDAO.getReadonlySample().getCachePolicy().get().getAll(cacheKeys).isEmpty());
+        assertTrue(userDAO.findUniqueIdMultiple(ids).isEmpty());
+    }
+
+    @Test
+    public void testNegativeCaching() {
+        final MemCache cache = userDAO.getReadonlySample().getCachePolicy().get();
+        final String missingId = "missing" + RandomUtils.getInstance().getRandomSafeAlphaNumberString(10);
+        final String missingCacheKey = userDAO.getEntityName() + missingId;
+
+        assertNull(userDAO.findById(missingId));
+        RetryingHandler.sleep(500);
+
+        assertTrue(Tombstone.isTombstone(cache.get(missingCacheKey)));
+        assertNull(userDAO.findById(missingId));
+        assertNull(userDAO.findByIdAsync(missingId).get());
+
+        final List<String> ids = new ArrayList<>();
+        ids.add(missingId);
+        ids.add("other" + missingId);
+
+        assertTrue(userDAO.findUniqueIdMultiple(ids).isEmpty());
+        RetryingHandler.sleep(500);
+
+        assertTrue(Tombstone.isTombstone(cache.get(userDAO.getEntityName() + "other" + missingId)));
+
+        // writes overwrite the tombstone
+        final User user = new User();
+        user.setId(missingId);
+        user.LASTNAME.set("Tombstone");
+        userDAO.updateOrPersist(user);
+        RetryingHandler.sleep(500);
+
+        assertTrue(user.isFullyEquals(userDAO.findById(missingId)));
+        assertEquals(1, userDAO.findUniqueIdMultiple(ids).size());
+    }
+
+    @Test
+    public void testFindByIdAsyncBatching() {
+        final List<User> users = buildUsers();
+
+        userDAO.massiveUpload(users);
+
+        final Map<String, FutureEntity<User>> futures = new HashMap<>();
+
+        for (final User user : users) {
+            futures.put(user.getId(), userDAO.findByIdAsync(user.getId()));
+        }
+        futures.put("missing", userDAO.findByIdAsync("missing"));
+
+        final GetBatch batch = GetBatch.pending();
+        assertNotNull(batch);
+        assertEquals(users.size() + 1, batch.size());
+
+        assertNull(futures.get("missing").get());
+        assertTrue(batch.isDispatched());
+        assertNull(GetBatch.pending());
+
+        for (final User user : users) {
+            assertTrue(user.isFullyEquals(futures.get(user.getId()).get()));
+        }
+
+        // next calls start a new batch
+        assertNull(userDAO.findByIdAsync("otherMissing").get());
+
+        // batches not dispatched are released from the thread with the scope
+        RequestScope.begin();
+        final FutureEntity<User> pending = userDAO.findByIdAsync("scopedMissing");
+        assertNotNull(GetBatch.pending());
+        RequestScope.end();
+        assertNull(GetBatch.pending());
+        assertNull(pending.get());
+    }
+
+    @Test
+    public void testWriteBehindBuffer() {
+        final List<User> users = buildUsers();
+        final User user = users.get(0);
+        final RequestScope scope = RequestScope.beginWithWriteBehind(buildTestThreadFactory());
+        final WriteCompletion completion;
+
+        try {
+            user.LASTNAME.set("WriteBehind");
+
+            for (final User each : users) {
+                userDAO.updateOrPersistAsync(each);
+            }
+            user.AGE.set(7);
+            userDAO.updateOrPersistAsync(user);
+
+            // the buffer keeps a snapshot, so later changes are not written without another call
+            user.AGE.set(8);
+
+            // latest version of each key is kept
+            assertEquals(users.size(), scope.getWriteBehindBuffer().size());
+            assertSame(user, userDAO.findById(user.getId()));
+
+            // removed objects are not written
+            userDAO.remove(users.get(1).getId());
+            assertEquals(users.size() - 1, scope.getWriteBehindBuffer().size());
+
+            RetryingHandler.sleep(1000);
+            assertTrue(userDAO.getByLastName("WriteBehind").isEmpty());
+        } finally {
+            completion = RequestScope.end();
+        }
+
+        assertTrue(completion.isDone());
+        assertTrue(completion.getFailures().isEmpty());
+
+        RetryingHandler.sleep(1000);
+
+        assertEquals(1, userDAO.getByLastName("WriteBehind").size());
+        assertEquals(7, userDAO.findById(user.getId()).AGE.get().intValue());
+        assertNull(userDAO.findById(users.get(1).getId()));
+        assertTrue(users.get(2).isFullyEquals(userDAO.findById(users.get(2).getId())));
+    }
+
+    @Test
+    public void testDirtyTracking() {
+        final User user = userDAO.getByLastName("liendo").get(0);
+        final Long lastModification = user.LAST_MODIFICATION.get();
+
+        assertFalse(user.isDirty());
+        assertTrue(new User().isDirty());
+
+        // reading doesn't make it dirty
+        user.LIST_STRING.size();
+        user.MAP_STRING_STRING.containsKey("0");
+        user.FIRSTNAME.get();
+        assertFalse(user.isDirty());
+
+        // changes done out of properties are not tracked, so clean objects are not written
+        user.getDataObject().put(user.FIRSTNAME.getPropertyName(), "Ghost");
+        userDAO.updateOrPersist(user);
+        assertEquals(lastModification, user.LAST_MODIFICATION.get());
+        assertNotEquals("Ghost", findStoredUser(user.getId()).FIRSTNAME.get());
+
+        user.LIST_STRING.add("added");
+        assertTrue(user.isDirty());
+        userDAO.updateOrPersist(user);
+        assertFalse(user.isDirty());
+        assertTrue(findStoredUser(user.getId()).LIST_STRING.contains("added"));
+
+        user.MAP_STRING_STRING.put("key", "value");
+        assertTrue(user.isDirty());
+        userDAO.updateOrPersist(user);
+        assertFalse(user.isDirty());
+
+        user.AGE.set(33);
+        assertTrue(user.isDirty());
+    }
+
+    @Test
+    public void testInPlaceChangesTracking() {
+        final User sample = buildUsers().get(0);
+        userDAO.updateOrPersist(sample);
+
+        final User user = findStoredUser(sample.getId());
+        final Long lastModification = user.LAST_MODIFICATION.get();
+
+        // values that can be changed in place are compared with the loaded data, so reading them doesn't write
+        for (final Address address : user.ADDRESSES) {
+            assertNotNull(address.getStreet());
+        }
+        assertEquals(2, user.ADDRESSES_MAP.values().size());
+        assertNotNull(user.ADDRESSES_MAP.get(user.ADDRESSES.get(0).getStreet()));
+        assertNotNull(user.ADDRESS.get().getStreet());
+        assertEquals(10, user.LIST_STRING.get().size());
+        assertEquals(10, user.MAP_STRING_STRING.entrySet().size());
+        assertTrue(user.LIST_INT.subList(0, 2).size() == 2);
+        assertFalse(user.isDirty());
+
+        userDAO.updateOrPersist(user);
+        assertEquals(lastModification, user.LAST_MODIFICATION.get());
+
+        user.ADDRESS.get().setStreet("Changed in place");
+        user.ADDRESSES.get(1).setNumber("2nd");
+        assertTrue(user.isDirty());
+
+        userDAO.updateOrPersist(user);
+        assertFalse(user.isDirty());
+
+        final User stored = findStoredUser(user.getId());
+        assertEquals("Changed in place", stored.ADDRESS.get().getStreet());
+        assertEquals("2nd", stored.ADDRESSES.get(1).getNumber());
+    }
+
+    @Test
+    public void testReuseEncodedBinaryData() {
+        final User user = userDAO.getByLastName("liendo").get(0);
+        final byte[] loaded = user.getReusableBinaryData();
+
+        assertNotNull(loaded);
+
+        // indexed values are not read from binary data, so it is still valid
+        user.LASTNAME.set("liendo2");
+        assertSame(loaded, user.getReusableBinaryData());
+
+        final Entity entity = userDAO.buildEntityFromPersistentObject(user);
+        assertSame(loaded, ((Blob) entity.getProperty(EntityPersistentObjectConverter.DATA_CONTAINER_PROPERTY)).getBytes());
+
+        userDAO.updateOrPersist(user);
+        final User stored = findStoredUser(user.getId());
+        assertEquals("liendo2", stored.LASTNAME.get());
+        assertTrue(user.isFullyEquals(stored));
+
+        user.FIRSTNAME.set("other");
+        assertNull(user.getReusableBinaryData());
+
+        userDAO.updateOrPersist(user);
+        assertNotNull(user.getReusableBinaryData());
+        assertEquals("other", findStoredUser(user.getId()).FIRSTNAME.get());
+
+        user.LIST_STRING.add("added");
+        assertNull(user.getReusableBinaryData());
+    }
+
+    @Test
+    public void testStreamingMassiveUpload() {
+        final int total = 1200;
+        final User partial = new User();
+        partial.markAsPartial();
+
+        final Iterator<User> source = new Iterator<User>() {
+            private int count = 0;
+
+            @Override
+            public boolean hasNext() {
+                return count <= total;
+            }
+
+            @Override
+            public User next() {
+                count++;
+
+                if (count == 50) {
+                    return partial;
+                }
+
+                final User user = new User();
+                user.LASTNAME.set("Streamed");
+                return user;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        final long[] lastProgress = new long[1];
+        final MassiveUpload<User> massiveUpload = new MassiveUpload<>(userDAO);
+        massiveUpload.setMaxChunkEntities(100);
+        massiveUpload.setMaxPutsInFlight(2);
+        massiveUpload.setEncodingThreads(buildTestThreadFactory(), 3);
+        massiveUpload.setProgressListener(new IUploadProgressListener() {
+            @Override
+            public void progress(final long writtenCount, final int failuresCount) {
+                lastProgress[0] = writtenCount;
+            }
+        });
+
+        massiveUpload.upload(source);
+
+        assertEquals(total, massiveUpload.getWrittenCount());
+        assertEquals(total, lastProgress[0]);
+        assertEquals(1, massiveUpload.getFailures().size());
+        assertEquals(partial.getId(), massiveUpload.getFailures().get(0).getIds().get(0));
+
+        RetryingHandler.sleep(1000);
+
+        assertEquals(total, userDAO.getByLastName("Streamed").size());
+        assertNull(userDAO.findById(partial.getId()));
+    }
+
+    @Test
+    public void testUpdateWithConcurrencyCheck() {
+        final User user = new User();
+        user.AGE.set(1);
+        userDAO.updateOrPersist(user);
+
+        final AtomicInteger tries = new AtomicInteger();
+
+        final User updated = userDAO.updateWithConcurrencyCheck(user.getId(), new IEntityMutation<User>() {
+            @Override
+            public void mutate(final User entity) {
+                if (tries.incrementAndGet() == 1) {
+                    // another instance writes the entity after it was loaded. Waiting so the modification time changes
+                    RetryingHandler.sleep(1100);
+
+                    final User other = findStoredUser(entity.getId());
+                    other.FIRSTNAME.set("concurrent");
+                    userDAO.updateOrPersist(other);
+                }
+                entity.AGE.set(entity.AGE.get() + 1);
+            }
+        });
+
+        assertEquals(2, tries.get());
+        assertEquals(2, updated.AGE.get().intValue());
+
+        final User stored = findStoredUser(user.getId());
+        assertEquals(2, stored.AGE.get().intValue());
+        assertEquals("concurrent", stored.FIRSTNAME.get());
+        assertEquals(updated.LAST_MODIFICATION.get(), stored.LAST_MODIFICATION.get());
+
+        final User second = new User();
+        userDAO.updateOrPersist(second);
+
+        final Map<String, User> both = userDAO.updateWithConcurrencyCheck(Arrays.asList(user.getId(), second.getId(), "missing"), new IEntityMutation<User>() {
+            @Override
+            public void mutate(final User entity) {
+                entity.LASTNAME.set("batched");
+            }
+        });
+
+        assertEquals(2, both.size());
+        assertEquals("batched", findStoredUser(user.getId()).LASTNAME.get());
+        assertEquals("batched", findStoredUser(second.getId()).LASTNAME.get());
+        assertEquals(2, findStoredUser(user.getId()).AGE.get().intValue());
+    }
+
+    @Test
+    public void testShardedCounter() {
+        final ShardedCounter counter = new ShardedCounter("gifts", 4);
+
+        assertEquals(0, counter.get());
+
+        for (int i = 0; i < 40; i++) {
+            counter.increment();
+        }
+        counter.add(-5);
+
+        assertEquals(35, counter.get());
+
+        final MemCache cache = CacheStrategy.APPLICATION_CACHE.get();
+        cache.remove("ShardedCounterTotal_gifts");
+        RetryingHandler.sleep(500);
+
+        assertEquals(35, counter.get());
+
+        final Query query = new Query(ShardedCounter.ENTITY_NAME);
+        assertTrue(userDAO.getRetryingHandler().tryExecuteQuery(query).size() > 1);
+
+        counter.setDeferredFlushMillis(60000);
+        counter.addDeferred(10);
+        counter.addDeferred(20);
+
+        assertEquals(35, counter.get());
+
+        counter.flush();
+
+        assertEquals(65, counter.get());
+        final ShardedCounter other = new ShardedCounter("other", 4, new CachePolicy.Builder().namespace("counters").build());
+        other.increment();
+        assertEquals(1, other.get());
+    }
+
+    @Test
+    public void testBlobOverflow() throws Exception {
+        final byte[] bytes = new byte[2500000];
+        new Random(7).nextBytes(bytes);
+
+        final User user = new User();
+        user.BYTES.set(bytes);
+        userDAO.updateOrPersist(user);
+
+        final Query chunksQuery = new Query(EntityPersistentObjectConverter.BLOB_CHUNK_ENTITY_NAME).setKeysOnly();
+        assertEquals(2, userDAO.getRetryingHandler().tryExecuteQuery(chunksQuery).size());
+
+        assertArrayEquals(bytes, findStoredUser(user.getId()).BYTES.get());
+        assertArrayEquals(bytes, userDAO.findById(user.getId()).BYTES.get());
+        assertArrayEquals(bytes, userDAO.findByIdAsync(user.getId()).get().BYTES.get());
+
+        final User small = new User();
+        small.LASTNAME.set("small");
+        userDAO.massiveUpload(Arrays.asList(user, small));
+
+        assertArrayEquals(bytes, findStoredUser(user.getId()).BYTES.get());
+        assertEquals("small", findStoredUser(small.getId()).LASTNAME.get());
+
+        final Map<String, User> both = userDAO.findUniqueIdMultiple(Arrays.asList(user.getId(), small.getId()));
+        assertArrayEquals(bytes, both.get(user.getId()).BYTES.get());
+        assertEquals("small", both.get(small.getId()).LASTNAME.get());
+
+        // a stale cached first chunk is never joined with the stored chunks of a newer version
+        final MemCache cache = userDAO.getReadonlySample().getCachePolicy().get();
+        final String cacheKey = user.getEntityName() + user.getId();
+        userDAO.findById(user.getId());
+        final Object staleValue = cache.get(cacheKey);
+        assertNotNull(staleValue);
+
+        final byte[] newerBytes = new byte[2500000];
+        new Random(8).nextBytes(newerBytes);
+        user.BYTES.set(newerBytes);
+        userDAO.updateOrPersist(user);
+
+        final Future<Boolean> restored = cache.put(cacheKey, staleValue);
+        if (restored != null) {
+            restored.get();
+        }
+        assertArrayEquals(newerBytes, userDAO.findById(user.getId()).BYTES.get());
+
+        // chunks that a smaller blob doesn't use are deleted by its write
+        final byte[] smallerBytes = new byte[1500000];
+        new Random(9).nextBytes(smallerBytes);
+        user.BYTES.set(smallerBytes);
+        userDAO.updateOrPersist(user);
+
+        assertEquals(1, userDAO.getRetryingHandler().tryExecuteQuery(chunksQuery).size());
+        assertArrayEquals(smallerBytes, findStoredUser(user.getId()).BYTES.get());
+
+        user.BYTES.set(new byte[]{1, 2, 3});
+        userDAO.updateOrPersist(user);
+
+        assertEquals(0, userDAO.getRetryingHandler().tryExecuteQuery(chunksQuery).size());
+        assertArrayEquals(new byte[]{1, 2, 3}, findStoredUser(user.getId()).BYTES.get());
+
+        user.BYTES.set(bytes);
+        userDAO.updateOrPersist(user);
+        assertEquals(2, userDAO.getRetryingHandler().tryExecuteQuery(chunksQuery).size());
+
+        userDAO.remove(user.getId());
+
+        assertNull(findStoredUser(user.getId()));
+        assertEquals(0, userDAO.getRetryingHandler().tryExecuteQuery(chunksQuery).size());
+    }
+
+    @Test
+    public void testCompletionHandles() {
+        final User user = new User();
+        user.LASTNAME.set("handles");
+
+        final WriteCompletion put = userDAO.updateOrPersistAsync(user);
+        put.await();
+
+        assertTrue(put.isDone());
+        assertEquals("handles", findStoredUser(user.getId()).LASTNAME.get());
+        assertTrue(userDAO.updateOrPersistAsync(user).isDone());
+
+        // callbacks, as the write through of the cache, run once when the handle is resolved
+        user.LASTNAME.set("callbacks");
+        final WriteCompletion written = userDAO.updateOrPersistAsync(user);
+        final AtomicInteger callbacks = new AtomicInteger();
+        written.whenWritten(new Runnable() {
+            @Override
+            public void run() {
+                callbacks.incrementAndGet();
+            }
+        });
+        written.await();
+        written.await();
+        assertEquals(1, callbacks.get());
+        assertEquals("callbacks", userDAO.findById(user.getId()).LASTNAME.get());
+
+        // checking if the handle is done resolves it too, so the written value is cached without a scope nor await
+        user.LASTNAME.set("polled");
+        final WriteCompletion polled = userDAO.updateOrPersistAsync(user);
+        polled.whenWritten(new Runnable() {
+            @Override
+            public void run() {
+                callbacks.incrementAndGet();
+            }
+        });
+        while (!polled.isDone()) {
+            RetryingHandler.sleep(10);
+        }
+        assertEquals(2, callbacks.get());
+
+        userDAO.removeAsync(user.getId()).await();
+        assertNull(findStoredUser(user.getId()));
+
+        final User partial = new User();
+        partial.markAsPartial();
+        final List<User> users = buildUsers();
+
+        final RequestScope scope = RequestScope.begin();
+
+        try {
+            for (final User each : users) {
+                userDAO.updateOrPersistAsync(each);
+            }
+            scope.awaitAll();
+
+            for (final User each : users) {
+                assertNotNull(findStoredUser(each.getId()));
+            }
+
+            final WriteCompletion upload = userDAO.massiveUpload(Arrays.asList(new User(), partial));
+            assertEquals(1, upload.getFailures().size());
+
+            userDAO.removeAsync(users.get(0).getId());
+
+            try {
+                scope.awaitAll();
+                fail("Failed upload should be reported");
+            } catch (final RuntimeException _exception) {
+                assertTrue(_exception.getCause().getMessage().contains(partial.getId()));
+            }
+            assertNull(findStoredUser(users.get(0).getId()));
+        } finally {
+            assertTrue(RequestScope.end().getFailures().isEmpty());
+        }
+
+        final RequestScope bufferedScope = RequestScope.beginWithWriteBehind(buildTestThreadFactory());
+
+        try {
+            final User buffered = new User();
+            final WriteCompletion bufferedPut = userDAO.updateOrPersistAsync(buffered);
+
+            assertFalse(bufferedPut.isDone());
+
+            bufferedScope.flush();
+            bufferedPut.await();
+
+            assertNotNull(findStoredUser(buffered.getId()));
+        } finally {
+            RequestScope.end();
+        }
+    }
+
+    @Test
+    public void testLocalCacheTier() throws Exception {
+        final TieredMemCache cache = (TieredMemCache) CacheStrategy.LOCAL_APPLICATION_CACHE.get();
+        final LocalCache localCache = cache.getLocalCache();
+        final String key = "tiered" + RandomUtils.getInstance().getRandomSafeAlphaNumberString(10);
+        localCache.clear();
+
+        assertNull(cache.get(key));
+
+        // waiting for the async put, so it is not done after the delete below
+        final byte[] value = {1, 2, 3};
+        cache.put(key, value).get();
+        final long hits = localCache.getHitCount();
+
+        // removed from MemCache only, so it is read from the local tier
+        MemcacheServiceFactory.getMemcacheService().delete(key);
+        assertArrayEquals(value, (byte[]) cache.get(key));
+        assertEquals(hits + 1, localCache.getHitCount());
+
+        cache.remove(key);
+        assertNull(cache.get(key));
+
+        // values read from MemCache are kept locally. Another key, as the async delete of the previous one could be
+        // still running
+        final String remoteKey = key + "remote";
+        final byte[] remoteValue = {4, 5, 6};
+        MemcacheServiceFactory.getMemcacheService().put(remoteKey, remoteValue);
+        assertArrayEquals(remoteValue, (byte[]) cache.getAll(Collections.singletonList(remoteKey)).get(remoteKey));
+        MemcacheServiceFactory.getMemcacheService().delete(remoteKey);
+        assertArrayEquals(remoteValue, (byte[]) cache.get(remoteKey));
+
+        // counters and other non entity values are always read from MemCache, so changes of other instances are seen
+        final String counterKey = key + "counter";
+        MemcacheServiceFactory.getMemcacheService().put(counterKey, 5L);
+        assertEquals(5L, cache.get(counterKey));
+        MemcacheServiceFactory.getMemcacheService().increment(counterKey, 1L);
+        assertEquals(6L, cache.get(counterKey));
+        assertNull(localCache.get(counterKey));
+
+        // values read back are kept locally only if MemCache accepted them, as a newer one could be written meanwhile
+        final String addedKey = key + "added";
+        final String writtenKey = key + "written";
+        final byte[] writtenValue = {7, 8, 9};
+        MemcacheServiceFactory.getMemcacheService().put(writtenKey, writtenValue);
+        final Map<String, Object> loaded = new HashMap<>();
+        loaded.put(addedKey, value);
+        loaded.put(writtenKey, remoteValue);
+        assertEquals(Collections.singleton(addedKey), cache.putAllIfAbsent(loaded).get());
+        assertArrayEquals(value, (byte[]) localCache.get(addedKey));
+        assertNull(localCache.get(writtenKey));
+        assertArrayEquals(writtenValue, (byte[]) cache.get(writtenKey));
+
+        cache.putNotFound(key + "missing");
+        assertTrue(Tombstone.isTombstone(cache.get(key + "missing")));
+
+        final LocalCache lru = new LocalCache(2);
+        lru.put("a", 1, 60);
+        lru.put("b", 2, 60);
+        lru.get("a");
+        lru.put("c", 3, 60);
+
+        assertEquals(1, lru.get("a"));
+        assertNull(lru.get("b"));
+        assertEquals(1, lru.getEvictionCount());
+
+        lru.put("d", 4, 0);
+        RetryingHandler.sleep(5);
+        assertNull(lru.get("d"));
+    }
+
+    @Test
+    public void testCompactCacheEncoding() {
+        final User user = new User();
+        user.LASTNAME.set("compact");
+        user.AGE.set(33);
+        user.LIST_STRING.add("a");
+
+        final DAO<User> dao = userDAO;
+        final Entity entity = userDAO.buildEntityFromPersistentObject(user);
+        final Object cacheValue = DAO.toCacheValue(entity);
+
+        assertTrue(cacheValue instanceof byte[]);
+        assertEquals(CachedEntityCodec.VERSION, ((byte[]) cacheValue)[0]);
+
+        final Entity decoded = dao.fromCacheValue(cacheValue);
+        assertEquals(entity.getKey(), decoded.getKey());
+        assertEquals(entity.getProperties(), decoded.getProperties());
+        assertTrue(user.isFullyEquals(userDAO.buildPersistentObjectFromEntity(decoded)));
+
+        // entities cached by previous versions are still read, unknown encodings are misses
+        assertSame(entity, dao.fromCacheValue(entity));
+        assertNull(dao.fromCacheValue(new byte[]{99}));
+
+        // the write is cached with a synchronous compare-and-set, so it is there when updateOrPersist returns
+        userDAO.updateOrPersist(user);
+
+        final Object cached = userDAO.getReadonlySample().getCachePolicy().get().get(userDAO.getEntityName() + user.getId());
+        assertTrue(cached instanceof byte[]);
+        assertEquals(CachedEntityCodec.VERSION, ((byte[]) cached)[0]);
+        assertEquals("compact", userDAO.findById(user.getId()).LASTNAME.get());
+
+        // values of another codec version are removed on read, so the load caches the entity again
+        final MemCache cache = userDAO.getReadonlySample().getCachePolicy().get();
+        final String cacheKey = userDAO.getEntityName() + user.getId();
+        MemcacheServiceFactory.getMemcacheService().put(cacheKey, new byte[]{1, 2, 3});
+
+        assertEquals("compact", userDAO.findById(user.getId()).LASTNAME.get());
+        RetryingHandler.sleep(500);
+        assertEquals(CachedEntityCodec.VERSION, ((byte[]) cache.get(cacheKey))[0]);
+    }
+
+    @Test
+    public void testCacheVersionCheck() {
+        final User user = new User();
+        user.LASTNAME.set("newer");
+        userDAO.updateOrPersist(user);
+
+        final DAO<User> dao = userDAO;
+        final MemCache cache = userDAO.getReadonlySample().getCachePolicy().get();
+        final String cacheKey = userDAO.getEntityName() + user.getId();
+        final Entity newer = userDAO.buildEntityFromPersistentObject(user);
+        final Entity older = userDAO.buildEntityFromPersistentObject(user);
+        older.setProperty(user.LASTNAME.getPropertyName(), "older");
+        older.setProperty(user.LAST_MODIFICATION.getPropertyName(), user.LAST_MODIFICATION.get() - 1000);
+
+        // a tombstone is replaced by a write
+        MemcacheServiceFactory.getMemcacheService().put(cacheKey, Tombstone.INSTANCE);
+        dao.putWrittenInCache(Collections.singletonList(newer));
+        assertEquals(newer.getProperties(), dao.fromCacheValue(cache.get(cacheKey)).getProperties());
+
+        // a slower write of an older version doesn't replace the newer one
+        dao.putWrittenInCache(Collections.singletonList(older));
+        assertEquals(newer.getProperties(), dao.fromCacheValue(cache.get(cacheKey)).getProperties());
+
+        // neither does the write back of a read
+        dao.putLoadedInCache(Collections.singletonList(older));
+        assertEquals(newer.getProperties(), dao.fromCacheValue(cache.get(cacheKey)).getProperties());
+        assertEquals("newer", userDAO.findById(user.getId()).LASTNAME.get());
+
+        // writes of the same millisecond only differ by the random suffix, so they can't be ordered and the key is
+        // removed. A new key only written by sync calls here, as the async ones above could still land on the other one
+        final User other = new User();
+        other.LASTNAME.set("cached");
+        other.setModified();
+        final String otherCacheKey = userDAO.getEntityName() + other.getId();
+        final Entity cached = userDAO.buildEntityFromPersistentObject(other);
+        final long version = (Long) cached.getProperty(other.LAST_MODIFICATION.getPropertyName());
+        final Entity sameTime = userDAO.buildEntityFromPersistentObject(other);
+        sameTime.setProperty(other.LASTNAME.getPropertyName(), "same time");
+        sameTime.setProperty(other.LAST_MODIFICATION.getPropertyName(), version / 100 * 100 + (version % 100 + 1) % 100);
+
+        MemcacheServiceFactory.getMemcacheService().put(otherCacheKey, DAO.toCacheValue(cached));
+        dao.putWrittenInCache(Collections.singletonList(sameTime));
+        assertNull(MemcacheServiceFactory.getMemcacheService().get(otherCacheKey));
+    }
+
+    @Test
+    public void testCachePolicy() {
+        // presets are policies like any other, sharing their cache
+        final CachePolicy application = new CachePolicy.Builder().timeoutSecs(60 * 60 * 24).negativeTimeoutSecs(60).build();
+
+        assertEquals(CacheStrategy.APPLICATION_CACHE.getPolicy(), application);
+        assertSame(CacheStrategy.APPLICATION_CACHE.get(), application.get());
+        assertEquals(CacheStrategy.SESSION_CACHE.getPolicy(), userDAO.getReadonlySample().getCachePolicy());
+        assertFalse(CacheStrategy.NO_CACHE.getPolicy().isEnabled());
+        assertTrue(CacheStrategy.NO_CACHE.get() instanceof NoMemCache);
+        assertTrue(CacheStrategy.LOCAL_APPLICATION_CACHE.get() instanceof TieredMemCache);
+
+        // namespaced keys are not seen from the default namespace
+        final MemCache namespaced = new CachePolicy.Builder().timeoutSecs(120).namespace("policyTest").build().get();
+        namespaced.addIfNotPresent("policyKey", "namespaced", 120);
+
+        assertEquals("policyTest", namespaced.getNamespace());
+        assertEquals("namespaced", namespaced.get("policyKey"));
+        assertNull(CacheStrategy.APPLICATION_CACHE.get().get("policyKey"));
+
+        // local only policies don't use MemCache
+        final CachePolicy localOnly = new CachePolicy.Builder().timeoutSecs(120).localTier(10, 120).localOnly().writePolicy(WritePolicy.INVALIDATE_ON_WRITE).maxValueBytes(1000).build();
+        final MemCache local = localOnly.get();
+
+        assertTrue(local instanceof LocalMemCache);
+        // equal policies share the cache, which lives as long as the instance
+        ((LocalMemCache) local).getLocalCache().clear();
+        assertEquals(WritePolicy.INVALIDATE_ON_WRITE, localOnly.getWritePolicy());
+        assertTrue(localOnly.isCacheable(1000));
+        assertFalse(localOnly.isCacheable(1001));
+
+        local.put("localKey", "local");
+        assertEquals("local", local.get("localKey"));
+        assertNull(CacheStrategy.APPLICATION_CACHE.get().get("localKey"));
+        assertEquals(Long.valueOf(11), local.increment("localCounter", 1, 10));
+        assertEquals(Long.valueOf(13), local.incrementIfPresent("localCounter", 2));
+
+        local.remove("localKey");
+        assertNull(local.get("localKey"));
+    }
+
+    @Test
+    public void testEarlyRefresh() {
+        final MemCache cache = userDAO.getReadonlySample().getCachePolicy().get();
+        final long timeoutMillis = cache.getCacheTimeoutSecs() * 1000L;
+
+        // values about to expire are refreshed, fresh ones are not
+        assertTrue(cache.shouldRefreshEarly(System.currentTimeMillis() - timeoutMillis, 100));
+        assertFalse(cache.shouldRefreshEarly(System.currentTimeMillis(), 100));
+        assertFalse(CacheStrategy.NO_CACHE.get().shouldRefreshEarly(0, 100));
+
+        final User user = new User();
+        user.LASTNAME.set("fresh");
+        userDAO.updateOrPersist(user);
+
+        final DAO<User> dao = userDAO;
+        final String cacheKey = userDAO.getEntityName() + user.getId();
+        final long cachedAt = System.currentTimeMillis() - timeoutMillis;
+        final Entity stale = userDAO.buildEntityFromPersistentObject(user);
+        stale.setProperty(user.LASTNAME.getPropertyName(), "stale");
+
+        final byte[] staleValue = CachedEntityCodec.encode(stale, cachedAt);
+        assertEquals(cachedAt, CachedEntityCodec.readCachedAt(staleValue));
+        MemcacheServiceFactory.getMemcacheService().put(cacheKey, staleValue);
+
+        // without a scope the read is not blocked by a refresh
+        assertEquals("stale", userDAO.findById(user.getId()).LASTNAME.get());
+        assertArrayEquals(staleValue, (byte[]) cache.get(cacheKey));
+
+        RequestScope.begin();
+        try {
+            // the cached value is still served while it is refreshed
+            assertEquals("stale", userDAO.findById(user.getId()).LASTNAME.get());
+        } finally {
+            RequestScope.end();
+        }
+
+        final Object refreshed = cache.get(cacheKey);
+        assertEquals("fresh", dao.fromCacheValue(refreshed).getProperty(user.LASTNAME.getPropertyName()));
+        assertTrue(CachedEntityCodec.readCachedAt((byte[]) refreshed) > cachedAt);
+    }
+
+    private User findStoredUser(final String id) {
+        // skipping the cache, as async cache writes could not be done yet
+        return userDAO.buildPersistentObjectFromEntity(userDAO.getRetryingHandler().tryDSGet(DAO.buildKey(userDAO.getEntityName(), id)));
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final SingleFlight<String> singleFlight = new SingleFlight<>();
+        final AtomicInteger loads = new AtomicInteger();
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    results.add(singleFlight.load("key", new Callable<String>() {
+                        @Override
+                        public String call() {
+                            loads.incrementAndGet();
+                            RetryingHandler.sleep(1000);
+                            return "value";
+                        }
+                    }));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, loads.get());
+        assertEquals(10, results.size());
+        assertFalse(results.contains(null));
+
+        // nothing is kept after the load
+        assertEquals("other", singleFlight.load("key", new Callable<String>() {
+            @Override
+            public String call() {
+                return "other";
+            }
+        }));
+
+        final User user = userDAO.getByLastName("liendo").get(0);
+        assertTrue(user.isFullyEquals(userDAO.findById(user.getId())));
     }
 
     @Test
@@ -191,6 +1082,144 @@ public class DAOTest extends AbstractTest {
         assertTrue(userDAO.getByLastName("liendo").size() == 0);
     }
 
+    @Test
+    public void testPagedQueryIterator() {
+        final int allSize = userDAO.getAll().size();
+
+        for (final int prefetchPages : new int[]{0, 1, 3}) {
+            final Set<String> ids = new HashSet<>();
+            final Iterator<User> iterator = userDAO.findByQueryIterable(new Query(userDAO.getEntityName()), 7, prefetchPages);
+
+            while (iterator.hasNext()) {
+                ids.add(iterator.next().getId());
+            }
+            assertEquals(allSize, ids.size());
+            assertEquals(allSize, userDAO.findByQuery(null, prefetchPages).size());
+        }
+    }
+
+    @Test
+    public void testLazyMaterialization() {
+        final String id = userDAO.getByLastName("liendo").get(0).getId();
+
+        userDAO.setLazyMaterialization(true);
+
+        try {
+            final User user = userDAO.findById(id);
+
+            assertTrue(user.hasPendingBinaryData());
+            assertEquals("liendo", user.LASTNAME.get());
+            assertEquals(id, user.getId());
+
+            user.LASTNAME.set("changed");
+            assertTrue(user.hasPendingBinaryData());
+
+            checkSpecificUser(userDAO.findById(id));
+
+            assertEquals("hernan", user.FIRSTNAME.get());
+            assertFalse(user.hasPendingBinaryData());
+            assertEquals("changed", user.LASTNAME.get());
+            assertEquals(Integer.valueOf(18), user.AGE.get());
+        } finally {
+            userDAO.setLazyMaterialization(false);
+        }
+    }
+
+    @Test
+    public void testFindByProjection() {
+        final User sample = userDAO.getReadonlySample();
+        final List<User> projected = userDAO.findByProjection(null, sample.LASTNAME, sample.LAST_MODIFICATION);
+
+        assertEquals(userDAO.getAll().size(), projected.size());
+
+        User specific = null;
+
+        for (final User user : projected) {
+            assertTrue(user.isPartial());
+            assertTrue(user.LAST_MODIFICATION.get() > 0);
+
+            if ("liendo".equals(user.LASTNAME.get())) {
+                specific = user;
+            }
+        }
+
+        assertNotNull(specific);
+        assertNull(specific.FIRSTNAME.get());
+
+        try {
+            userDAO.updateOrPersist(specific);
+            fail("Partial objects should not be persisted");
+        } catch (final RuntimeException _runtimeException) {
+            // expected
+        }
+
+        checkSpecificUser(userDAO.findById(specific.getId()));
+    }
+
+    @Test
+    public void testFindByQueryThroughCache() {
+        final User sample = userDAO.getReadonlySample();
+        final Query.Filter filter = new Query.FilterPredicate(sample.LASTNAME.getPropertyName(), Query.FilterOperator.EQUAL, "liendo");
+
+        final List<User> result = userDAO.findByQueryThroughCache(filter);
+
+        assertEquals(1, result.size());
+        checkSpecificUser(result.get(0));
+
+        assertEquals(userDAO.getAll().size(), userDAO.findByQueryThroughCache(null).size());
+    }
+
+    @Test
+    public void testQueryResultCaching() {
+        final User hidden = new User();
+        userDAO.setQueryResultCaching(true);
+
+        try {
+            final List<User> first = userDAO.getByLastName("liendo");
+            assertEquals(1, first.size());
+            checkSpecificUser(first.get(0));
+
+            // written skipping the DAO, so the generation is not bumped and the cached result doesn't see it
+            hidden.LASTNAME.set("liendo");
+            hidden.setModified();
+            userDAO.getRetryingHandler().tryDSPut(userDAO.buildEntityFromPersistentObject(hidden));
+
+            final List<User> cached = userDAO.getByLastName("liendo");
+            assertEquals(1, cached.size());
+            checkSpecificUser(cached.get(0));
+
+            final User another = new User();
+            another.LASTNAME.set("liendo");
+            userDAO.updateOrPersist(another);
+
+            assertEquals(3, userDAO.getByLastName("liendo").size());
+
+            userDAO.remove(another.getId());
+
+            assertEquals(2, userDAO.getByLastName("liendo").size());
+        } finally {
+            userDAO.remove(hidden.getId());
+            userDAO.setQueryResultCaching(false);
+        }
+    }
+
+    @Test
+    public void testScanAllParallel() {
+        final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+
+        final long scanned = userDAO.scanAllParallel(10, buildTestThreadFactory(), new IEntityConsumer<User>() {
+            @Override
+            public void consume(final User entity) throws Exception {
+                ids.add(entity.getId());
+            }
+        });
+
+        final int allSize = userDAO.getAll().size();
+
+        assertEquals(allSize, scanned);
+        assertEquals(allSize, ids.size());
+    }
+
     @Test
     public void testFindUnique() {
         final Query query = new Query(userDAO.getEntityName());